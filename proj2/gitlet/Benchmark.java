@@ -0,0 +1,340 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static gitlet.Utils.*;
+
+/** Timing experiments for gitlet, run as
+ *      java gitlet.Benchmark status [FILES...]
+ *      java gitlet.Benchmark codec [FILES...]
+ *      java gitlet.Benchmark checkout [FILES...]
+ *      java gitlet.Benchmark mergebase [COMMITS...]
+ *  Each experiment builds throw-away repositories in a temporary
+ *  directory and prints one table row per configuration.
+ *  @author vv
+ */
+public class Benchmark {
+    /** Number of timed runs per configuration; the best one is reported. */
+    private static final int RUNS = 3;
+
+    public static void main(String... args) {
+        if (args.length == 0) {
+            System.out.println("Usage: java gitlet.Benchmark status|codec|checkout [FILES...] | mergebase [COMMITS...]");
+            return;
+        }
+        switch (args[0]) {
+            case "status":
+                status(sizes(args, 1000, 4000));
+                break;
+            case "codec":
+                codec(sizes(args, 10, 1000, 10000));
+                break;
+            case "checkout":
+                checkout(sizes(args, 1000, 10000));
+                break;
+            case "mergebase":
+                mergeBase(sizes(args, 10000, 100000));
+                break;
+            default:
+                System.out.println("No benchmark with that name exists.");
+        }
+    }
+
+    /**
+     * Times status against working-tree size and thread count:
+     * cold runs have no stat cache, so every tracked file is hashed;
+     * warm runs reuse the cache, so only stat data is read.
+     */
+    private static void status(int[] sizes) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%8s %8s %10s %10s%n", "files", "threads", "cold ms", "warm ms");
+        for (int n : sizes) {
+            File dir = tempDir();
+            Repository repo = new Repository(dir.getPath());
+            quietly(repo::init);
+            Random random = new Random(n);
+            for (int i = 0; i < n; i++) {
+                String filename = String.format("f%06d.txt", i);
+                writeContents(join(dir, filename), randomText(random, 16 * 1024));
+            }
+            repo.add(".");
+            repo.commit("benchmark files");
+            repo.flush();
+
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                System.setProperty("gitlet.threads", Integer.toString(threads));
+                long cold = Long.MAX_VALUE;
+                long warm = Long.MAX_VALUE;
+                for (int run = 0; run < RUNS; run++) {
+                    repo.INDEX.delete();
+                    cold = Math.min(cold, timeStatus(dir));
+                    warm = Math.min(warm, timeStatus(dir));
+                }
+                System.out.printf("%8d %8d %10.1f %10.1f%n", n, threads, cold / 1e6, warm / 1e6);
+            }
+            deleteAll(dir);
+        }
+    }
+
+    /**
+     * Compares the binary codecs with Java serialization: a commit, whose
+     * stored form names its tree and so does not grow with the files, and
+     * for each number of files a stage adding them all and a tree holding
+     * them (against the same file map as a HashMap).  Each row gives the
+     * stored size and the time to encode and decode one object.
+     */
+    private static void codec(int[] sizes) {
+        System.out.printf("%8s %8s %10s %10s %10s %10s %10s %10s%n", "object", "files",
+                "ser bytes", "ser w us", "ser r us", "bin bytes", "bin w us", "bin r us");
+        Commit commit = new Commit("benchmark files", List.of(new Commit()), sha1("benchmark tree"));
+        String id = commit.getID();
+        codecRow("commit", 0, 200000, commit, Commit.class, commit::encode, bytes -> Commit.decode(id, bytes));
+        for (int n : sizes) {
+            HashMap<String, String> files = new HashMap<>();
+            Stage stage = new Stage();
+            Tree tree = new Tree();
+            for (int i = 0; i < n; i++) {
+                String filename = String.format("f%06d.txt", i);
+                String blobId = sha1(filename);
+                files.put(filename, blobId);
+                stage.addFile(filename, blobId);
+                tree.putFile(filename, blobId);
+            }
+            int iterations = Math.max(10, 200000 / n);
+            codecRow("stage", n, iterations, stage, Stage.class, stage::encode, Stage::decode);
+            codecRow("tree", n, iterations, files, HashMap.class, tree::encode, Tree::decode);
+        }
+    }
+
+    /** Prints the codec row for OBJECT, named WHAT, holding N files:
+     *  serialized as a CLS against ENCODE and DECODE, each timed over
+     *  ITERATIONS calls. */
+    private static void codecRow(String what, int n, int iterations, Serializable object,
+                                 Class<? extends Serializable> cls,
+                                 Supplier<byte[]> encode, Consumer<byte[]> decode) {
+        byte[] ser = serialize(object);
+        byte[] bin = encode.get();
+        long serWrite = Long.MAX_VALUE;
+        long serRead = Long.MAX_VALUE;
+        long binWrite = Long.MAX_VALUE;
+        long binRead = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                serialize(object);
+            }
+            serWrite = Math.min(serWrite, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                deserialize(ser, cls);
+            }
+            serRead = Math.min(serRead, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                encode.get();
+            }
+            binWrite = Math.min(binWrite, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                decode.accept(bin);
+            }
+            binRead = Math.min(binRead, System.nanoTime() - start);
+        }
+        System.out.printf("%8s %8d %10d %10.1f %10.1f %10d %10.1f %10.1f%n", what, n,
+                ser.length, serWrite / 1e3 / iterations, serRead / 1e3 / iterations,
+                bin.length, binWrite / 1e3 / iterations, binRead / 1e3 / iterations);
+    }
+
+    /**
+     * Times checking out a branch of small files from one without files,
+     * against the number of writer threads.  Writing is bound by the
+     * latency of each file's system calls more than by the cores, so
+     * thread counts up to 8 are tried even on smaller machines.
+     */
+    private static void checkout(int[] sizes) {
+        int maxThreads = Math.max(8, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %8s %10s %12s%n", "files", "threads", "ms", "files/s");
+        for (int n : sizes) {
+            File dir = tempDir();
+            Repository repo = new Repository(dir.getPath());
+            quietly(repo::init);
+            repo.branch("empty");
+            Random random = new Random(n);
+            for (int i = 0; i < n; i++) {
+                String filename = String.format("d%02d/f%06d.txt", i % 64, i);
+                File file = join(dir, filename);
+                file.getParentFile().mkdirs();
+                writeContents(file, randomText(random, 1024));
+            }
+            repo.add(".");
+            repo.commit("benchmark files");
+            repo.flush();
+
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                System.setProperty("gitlet.threads", Integer.toString(threads));
+                long best = Long.MAX_VALUE;
+                for (int run = 0; run < RUNS; run++) {
+                    timeCheckout(dir, "empty");
+                    best = Math.min(best, timeCheckout(dir, "master"));
+                }
+                System.out.printf("%8d %8d %10.1f %12.0f%n", n, threads, best / 1e6, n / (best / 1e9));
+            }
+            deleteAll(dir);
+        }
+    }
+
+    /**
+     * Times merge-base queries on synthetic histories of two long-lived
+     * branches: "fork" branches once and never merges, "synced" merges the
+     * first branch into the second every 100 commits, and "criss-cross"
+     * also merges back the other way, leaving two best bases.  The old
+     * search, which lists every ancestor of both heads, is timed against
+     * the generation-ordered walk of CommitGraph.mergeBases.
+     */
+    private static void mergeBase(int[] sizes) {
+        System.out.printf("%8s %12s %6s %10s %10s%n", "commits", "history", "bases", "bfs us", "walk us");
+        for (int n : sizes) {
+            for (String shape : new String[] {"fork", "synced", "criss-cross"}) {
+                File dir = tempDir();
+                CommitGraph graph = CommitGraph.read(join(dir, "commit-graph"));
+                int[] heads = history(graph, n, !shape.equals("fork"), shape.equals("criss-cross"));
+                int a = heads[0];
+                int b = heads[1];
+                long bfs = Long.MAX_VALUE;
+                long walk = Long.MAX_VALUE;
+                int bases = 0;
+                for (int run = 0; run < RUNS * 10; run++) {
+                    long start = System.nanoTime();
+                    allAncestorsBase(graph, a, b);
+                    bfs = Math.min(bfs, System.nanoTime() - start);
+                    start = System.nanoTime();
+                    bases = graph.mergeBases(a, b).length;
+                    walk = Math.min(walk, System.nanoTime() - start);
+                }
+                System.out.printf("%8d %12s %6d %10.1f %10.1f%n", n, shape, bases, bfs / 1e3, walk / 1e3);
+                deleteAll(dir);
+            }
+        }
+    }
+
+    /** Appends N commits on two branches to GRAPH, alternating between
+     *  them, and returns their heads.  Every 100 commits the second branch
+     *  merges the first if MERGE; if also CROSS, the first merges the
+     *  second just before, each taking the other's head from before
+     *  either merge. */
+    private static int[] history(CommitGraph graph, int n, boolean merge, boolean cross) {
+        int root = graph.append(sha1("commit 0"), new int[0], 0);
+        int[] heads = {root, root};
+        int[] before = heads.clone();
+        for (int i = 1; i < n; i++) {
+            int side = i % 2;
+            int[] parents = {heads[side]};
+            if (cross && i % 100 == 0) {
+                before = heads.clone();
+                parents = new int[] {heads[side], before[1 - side]};
+            } else if (merge && i % 100 == 1) {
+                int other = cross ? before[1 - side] : heads[1 - side];
+                parents = new int[] {heads[side], other};
+            }
+            heads[side] = graph.append(sha1("commit " + i), parents, i);
+        }
+        return heads;
+    }
+
+    /** The merge base as found before the walk: the first ancestor of B,
+     *  breadth-first, among all the ancestors of A. */
+    private static int allAncestorsBase(CommitGraph graph, int a, int b) {
+        boolean[] ofA = new boolean[graph.size()];
+        for (int pos : graph.ancestors(a)) {
+            ofA[pos] = true;
+        }
+        for (int pos : graph.ancestors(b)) {
+            if (ofA[pos]) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    /** Checks out BRANCH in a fresh Repository for DIR, as a command
+     *  would, and returns the elapsed nanoseconds. */
+    private static long timeCheckout(File dir, String branch) {
+        long start = System.nanoTime();
+        Repository repo = new Repository(dir.getPath());
+        quietly(() -> repo.checkoutBranch(branch));
+        repo.flush();
+        return System.nanoTime() - start;
+    }
+
+    /** Runs status in a fresh Repository for DIR, as a command would, and
+     *  returns the elapsed nanoseconds. */
+    private static long timeStatus(File dir) {
+        long start = System.nanoTime();
+        Repository repo = new Repository(dir.getPath());
+        quietly(repo::status);
+        repo.flush();
+        return System.nanoTime() - start;
+    }
+
+    private static int[] sizes(String[] args, int... defaults) {
+        if (args.length <= 1) {
+            return defaults;
+        }
+        int[] res = new int[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            res[i - 1] = Integer.parseInt(args[i]);
+        }
+        return res;
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(i % 64 == 63 ? '\n' : (char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    /** Runs ACTION with System.out discarded. */
+    private static void quietly(Runnable action) {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        try {
+            action.run();
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    private static File tempDir() {
+        try {
+            return Files.createTempDirectory("gitlet-bench").toFile();
+        } catch (IOException excp) {
+            throw error("cannot create benchmark directory: %s", excp.getMessage());
+        }
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -1,15 +1,57 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import static gitlet.Utils.*;
 
 /**
  *  Represents a file Object.
+ *  The id depends on the content alone; the filename lives in the
+ *  commit that tracks the blob, so identical files share one blob.
+ *  <p>
+ *  A blob is stored as its deflated content, as its content unchanged
+ *  if deflating saves too little, or, in delta mode, as a deflated Delta
+ *  against an earlier blob of the same file:
+ *  -- FULL [deflated content]
+ *  -- RAW [content]
+ *  -- DELTA [20-byte base id] [depth] [deflated delta]
+ *  Blobs written by older versions are serialized Blob objects.
+ *  Raw blobs are written out to working files by the file system,
+ *  without passing through memory (see writeTo).
  */
 public class Blob implements Serializable {
+    /** Kept from the serialized form, so old blobs still load. */
+    private static final long serialVersionUID = -772110974864618035L;
+
+    static final byte FULL = 1;
+    static final byte DELTA = 2;
+    static final byte RAW = 3;
+
+    /** Size of the chunks files are hashed and stored in. */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Longest chain of deltas a read has to follow. */
+    static final int MAX_DELTA_DEPTH = 10;
+
     private String filename;
     private byte[] content;
     private String id;
@@ -19,10 +61,10 @@ public class Blob implements Serializable {
         File file = join(CWD, filename);
         if (file.exists()) {
             this.content = readContents(file);
-            this.id = sha1(filename, content);
+            this.id = sha1(content);
         } else {
             this.content = null;
-            this.id = sha1(filename);
+            this.id = null;
         }
     }
 
@@ -45,4 +87,201 @@ public class Blob implements Serializable {
     public String getId() {
         return id;
     }
+
+    /** Returns the id of the content of FILE, reading it in chunks. */
+    static String hash(File file) {
+        MessageDigest md = sha1Digest();
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            while (in.read(buffer) != -1) {
+                md.update(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytesToHex(md.digest());
+    }
+
+    /**
+     * Hashes FILE and writes it into STORE as a full or raw blob in the
+     * same pass, one CHUNK_SIZE chunk at a time, so memory use does not
+     * depend on the file size.  Whether to deflate is decided from the
+     * first chunk.  Returns the blob id; if STORE already has it, the new
+     * copy is dropped.
+     */
+    static String store(File file, ObjectStore store) {
+        MessageDigest md = sha1Digest();
+        File tmp = store.newTempFile();
+        Deflater deflater = new Deflater();
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             OutputStream raw = new BufferedOutputStream(Files.newOutputStream(tmp.toPath()))) {
+            // the first chunk, read whole, decides the format
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            while (buffer.hasRemaining() && in.read(buffer) != -1) {
+                continue;
+            }
+            DeflaterOutputStream deflated = null;
+            OutputStream out = raw;
+            if (compresses(buffer.array(), buffer.position())) {
+                raw.write(FULL);
+                deflated = new DeflaterOutputStream(raw, deflater, CHUNK_SIZE);
+                out = deflated;
+            } else {
+                raw.write(RAW);
+            }
+            do {
+                md.update(buffer.array(), 0, buffer.position());
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            } while (in.read(buffer) != -1);
+            if (deflated != null) {
+                deflated.finish();
+            }
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            deflater.end();
+        }
+        String id = bytesToHex(md.digest());
+        store.install(tmp, id);
+        return id;
+    }
+
+    private static MessageDigest sha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Returns the stored form of CONTENT as a full blob, or as a raw
+     *  one if deflating it saves too little. */
+    static byte[] encodeFull(byte[] content) {
+        byte[] compressed = compress(content);
+        if (!savesEnough(content.length, compressed.length)) {
+            return concat(new byte[] {RAW}, content);
+        }
+        return concat(new byte[] {FULL}, compressed);
+    }
+
+    /** True if the first LENGTH bytes of SAMPLE deflate well enough to
+     *  be stored deflated.  The fastest level is enough to tell. */
+    private static boolean compresses(byte[] sample, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] out = new byte[CHUNK_SIZE];
+            while (!deflater.finished()) {
+                deflater.deflate(out);
+            }
+            return savesEnough(length, deflater.getBytesWritten());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** True if deflating LENGTH bytes to COMPRESSED bytes saves at least
+     *  a tenth, which pays for inflating them on every read. */
+    private static boolean savesEnough(long length, long compressed) {
+        return compressed < length - length / 10;
+    }
+
+    /** Returns the stored form of DELTA against blob BASEID, which is
+     *  DEPTH deltas deep. */
+    static byte[] encodeDelta(String baseId, int depth, byte[] delta) {
+        byte[] header = new byte[22];
+        header[0] = DELTA;
+        System.arraycopy(hexToBytes(baseId), 0, header, 1, 20);
+        header[21] = (byte) depth;
+        return concat(header, compress(delta));
+    }
+
+    /** Returns the delta depth of the stored blob STORED, 0 if it is full. */
+    static int depthOf(byte[] stored) {
+        return stored[0] == DELTA ? stored[21] : 0;
+    }
+
+    /** Returns the id of the base of the stored blob STORED, or null if it
+     *  is not a delta. */
+    static String baseOf(byte[] stored) {
+        if (stored[0] != DELTA) {
+            return null;
+        }
+        byte[] raw = new byte[20];
+        System.arraycopy(stored, 1, raw, 0, 20);
+        return bytesToHex(raw);
+    }
+
+    /** Returns the content of the stored blob STORED, reading the content
+     *  of delta bases through BASES. */
+    static byte[] decode(byte[] stored, Function<String, byte[]> bases) {
+        if (stored[0] == FULL) {
+            return decompress(stored, 1);
+        } else if (stored[0] == RAW) {
+            return Arrays.copyOfRange(stored, 1, stored.length);
+        } else if (stored[0] == DELTA) {
+            byte[] base = bases.apply(baseOf(stored));
+            return Delta.apply(base, decompress(stored, 22));
+        }
+        return deserialize(stored, Blob.class).getContent();
+    }
+
+    /**
+     * Writes the content of blob ID, stored at STORED, to FILE.  A raw blob
+     * is copied from the object or pack file by FileChannel.transferTo and
+     * a full blob is inflated one chunk at a time, so neither passes
+     * through a byte[] of the whole content; deltas and blobs of older
+     * versions are decoded through CONTENTS, which returns the content of
+     * a blob id.
+     */
+    static void writeTo(ObjectStore.Location stored, String id, File file,
+                        Function<String, byte[]> contents) {
+        try (FileChannel in = FileChannel.open(stored.file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer type = ByteBuffer.allocate(1);
+            in.read(type, stored.offset);
+            if (type.get(0) == RAW) {
+                try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long position = stored.offset + 1;
+                    long end = stored.offset + stored.length;
+                    while (position < end) {
+                        long n = in.transferTo(position, end - position, out);
+                        if (n <= 0) {
+                            throw new IOException("truncated blob " + id);
+                        }
+                        position += n;
+                    }
+                }
+            } else if (type.get(0) == FULL) {
+                in.position(stored.offset + 1);
+                Inflater inflater = new Inflater();
+                try (InputStream inflated = new InflaterInputStream(Channels.newInputStream(in),
+                                                                    inflater, CHUNK_SIZE);
+                     OutputStream out = Files.newOutputStream(file.toPath())) {
+                    byte[] buffer = new byte[CHUNK_SIZE];
+                    int n;
+                    while ((n = inflated.read(buffer)) != -1) {
+                        out.write(buffer, 0, n);
+                    }
+                } finally {
+                    inflater.end();
+                }
+            } else {
+                writeContents(file, contents.apply(id));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] res = new byte[a.length + b.length];
+        System.arraycopy(a, 0, res, 0, a.length);
+        System.arraycopy(b, 0, res, a.length, b.length);
+        return res;
+    }
 }
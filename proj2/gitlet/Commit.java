@@ -1,5 +1,10 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -13,6 +18,16 @@ import static gitlet.Utils.*;
  *  @author vv
  */
 public class Commit implements Serializable {
+    /** Kept from the serialized form, so existing commits still load. */
+    private static final long serialVersionUID = 4343659708311643395L;
+
+    /** Version of the format written by encode(); decode() also reads
+     *  version 1, whose commits listed their files instead of a tree:
+     *  [1] [message] [timestamp] [parent count] [parent ids]
+     *  [file count] ([filename] [blob id])... */
+    private static final int FORMAT_VERSION = 2;
+    private static final int BLOB_MAP_VERSION = 1;
+
     /**
      *
      * List all instance variables of the Commit class here with a useful
@@ -28,10 +43,15 @@ public class Commit implements Serializable {
 
     private List<String> parents;
 
-    /** The files this Commit track. */
+    /** The files this Commit track, in commits written before trees;
+     *  null otherwise. */
     // filename, blobsID
     private HashMap<String, String> blobs;
 
+    /** The id of the Tree of the files this Commit track; null in commits
+     *  written before trees. */
+    private String tree;
+
     private String id;
 
     /**
@@ -42,29 +62,91 @@ public class Commit implements Serializable {
         this.timestamp = new Date(0);
         this.id = sha1(message, timestamp.toString());
         this.parents = new LinkedList<>();
-        this.blobs = new HashMap<>();
+        this.tree = Tree.EMPTY_ID;
     }
 
-    public Commit(String message, List<Commit> parents, Stage stage) {
+    /**
+     * A commit of the files in TREE, with PARENTS.
+     */
+    public Commit(String message, List<Commit> parents, String tree) {
         this.message = message;
         this.timestamp = new Date();
         this.parents = new ArrayList<>(2);
         for (Commit p : parents) {
             this.parents.add(p.getID());
         }
-        // using first parent blobs
-        this.blobs = parents.get(0).getBlobs();
+        this.tree = tree;
+        this.id = sha1(message, timestamp.toString(), String.join(" ", this.parents), tree);
+    }
 
-        for (Map.Entry<String, String> item : stage.getAdded().entrySet()) {
-            String filename = item.getKey();
-            String blobId = item.getValue();
-            blobs.put(filename, blobId);
-        }
-        for (String filename : stage.getRemoved()) {
-            blobs.remove(filename);
+    private Commit(String id, String message, Date timestamp, List<String> parents,
+                   HashMap<String, String> blobs, String tree) {
+        this.id = id;
+        this.message = message;
+        this.timestamp = timestamp;
+        this.parents = parents;
+        this.blobs = blobs;
+        this.tree = tree;
+    }
+
+    /**
+     * Returns the stored form of this commit:
+     * [version] [message] [timestamp] [parent count] [parent ids] [tree id]
+     * Strings are length-prefixed UTF-8 and ids are raw 20-byte hashes;
+     * the commit's own id is the name it is stored under.  Only new
+     * commits are encoded, and they all have a tree.
+     */
+    byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FORMAT_VERSION);
+            writeString(out, message);
+            out.writeLong(timestamp.getTime());
+            out.writeByte(parents.size());
+            for (String parent : parents) {
+                writeId(out, parent);
+            }
+            writeId(out, tree);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw error("Internal error encoding commit.");
         }
+    }
 
-        this.id = sha1(message, timestamp.toString(), parents.toString(), blobs.toString());
+    /** Returns commit ID from its stored form BYTES, written by encode()
+     *  or, by older versions, with Java serialization. */
+    static Commit decode(String id, byte[] bytes) {
+        if (isSerialized(bytes)) {
+            return deserialize(bytes, Commit.class);
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            int version = in.readByte();
+            if (version != FORMAT_VERSION && version != BLOB_MAP_VERSION) {
+                throw error("Unknown commit format %d.", version);
+            }
+            String message = readString(in);
+            Date timestamp = new Date(in.readLong());
+            int parentCount = in.readByte();
+            List<String> parents = new ArrayList<>(parentCount);
+            for (int i = 0; i < parentCount; i++) {
+                parents.add(readId(in));
+            }
+            if (version == FORMAT_VERSION) {
+                return new Commit(id, message, timestamp, parents, null, readId(in));
+            }
+            int blobCount = in.readInt();
+            HashMap<String, String> blobs = new HashMap<>(blobCount * 4 / 3 + 1);
+            for (int i = 0; i < blobCount; i++) {
+                String filename = readString(in);
+                blobs.put(filename, readId(in));
+            }
+            return new Commit(id, message, timestamp, parents, blobs, null);
+        } catch (IOException excp) {
+            throw error("Corrupt commit %s.", id);
+        }
     }
 
     public List<String> getParents() {
@@ -83,28 +165,50 @@ public class Commit implements Serializable {
     }
 
     public String getDateString() {
+        return dateFormat().format(timestamp);
+    }
+
+    /** Returns the format of commit dates in logs. */
+    static DateFormat dateFormat() {
         // Thu Nov 9 20:00:05 2017 -0800
-        DateFormat df = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.ENGLISH);
-        return df.format(timestamp);
+        return new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.ENGLISH);
+    }
+
+    public Date getTimestamp() {
+        return this.timestamp;
     }
 
     public String getMessage() {
         return this.message;
     }
 
+    /** Returns the files of a commit written before trees, or null;
+     *  Repository.getTrackedFiles works for all commits. */
     public HashMap<String, String> getBlobs() {
         return this.blobs;
     }
 
+    /** Returns the id of this commit's root tree, or null if it was
+     *  written before trees. */
+    public String getTree() {
+        return this.tree;
+    }
+
     public String getCommitAsString() {
+        return getLogEntry(id, parents, getDateString(), message);
+    }
+
+    /** Returns the log entry of commit ID with PARENTS, made at DATE
+     *  with MESSAGE. */
+    static String getLogEntry(String id, List<String> parents, String date, String message) {
         StringBuffer sb = new StringBuffer();
         sb.append("===\n");
-        sb.append("commit " + this.id + "\n");
+        sb.append("commit " + id + "\n");
         if (parents.size() == 2) {
             sb.append("Merge: " + parents.get(0).substring(0, 7) + " " + parents.get(1).substring(0, 7) + "\n");
         }
-        sb.append("Date: " + this.getDateString() + "\n");
-        sb.append(this.message + "\n\n");
+        sb.append("Date: " + date + "\n");
+        sb.append(message + "\n\n");
         return sb.toString();
     }
 }
@@ -0,0 +1,58 @@
+package gitlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded commits by id, least recently used first, so history walks
+ * decode each commit once per command.  Holds at most -Dgitlet.commitCache
+ * commits (DEFAULT_CAPACITY by default; 0 turns caching off).
+ * Cached commits are shared, so callers must not modify them.
+ */
+class CommitCache {
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    private final Map<String, Commit> commits;
+    private int hits;
+    private int misses;
+
+    CommitCache() {
+        this(Math.max(0, Integer.getInteger("gitlet.commitCache", DEFAULT_CAPACITY)));
+    }
+
+    CommitCache(int capacity) {
+        this.capacity = capacity;
+        this.commits = new LinkedHashMap<String, Commit>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Commit> eldest) {
+                return size() > CommitCache.this.capacity;
+            }
+        };
+    }
+
+    /** Returns the cached commit ID, or null, counting a hit or miss. */
+    Commit get(String id) {
+        Commit commit = commits.get(id);
+        if (commit == null) {
+            misses += 1;
+        } else {
+            hits += 1;
+        }
+        return commit;
+    }
+
+    void put(Commit commit) {
+        if (capacity > 0) {
+            commits.put(commit.getID(), commit);
+        }
+    }
+
+    int hits() {
+        return hits;
+    }
+
+    int misses() {
+        return misses;
+    }
+}
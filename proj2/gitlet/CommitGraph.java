@@ -0,0 +1,389 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/**
+ * The shape of the commit history, kept in primitive arrays so ancestry
+ * queries never deserialize a Commit.
+ * <p>
+ * commit-graph
+ * -- "GCGR" [version]
+ * -- records: [20-byte id] [first parent] [second parent] [generation] [time]
+ * <p>
+ * Records are appended in topological order, so a commit's position is
+ * larger than its parents' positions; a missing parent is -1.  The
+ * generation of a root commit is 1, and every other commit's generation
+ * is one more than its parents' largest, so a commit can only be an
+ * ancestor of commits with a larger generation.  The number of records is
+ * derived from the file length, so a torn final record is ignored.
+ */
+class CommitGraph {
+    private static final int MAGIC = 0x47434752;   // "GCGR"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int ID_SIZE = 20;
+    private static final int RECORD_SIZE = ID_SIZE + 4 + 4 + 4 + 8;
+
+    /** Paint flags of the merge-base walk. */
+    private static final byte SIDE_A = 1;
+    private static final byte SIDE_B = 2;
+    private static final byte STALE = 4;
+    private static final byte QUEUED = 8;
+
+    private final File file;
+    /** Number of records already in FILE. */
+    private int written;
+    private int count;
+
+    private byte[] ids;
+    private int[] parent1;
+    private int[] parent2;
+    private int[] generation;
+    private long[] time;
+
+    /** First 8 id bytes to position, built on the first lookup. */
+    private Map<Long, Integer> lookup;
+
+    private CommitGraph(File file, int capacity) {
+        this.file = file;
+        this.ids = new byte[capacity * ID_SIZE];
+        this.parent1 = new int[capacity];
+        this.parent2 = new int[capacity];
+        this.generation = new int[capacity];
+        this.time = new long[capacity];
+    }
+
+    /** Reads the graph in FILE; a missing or unreadable file gives an
+     *  empty graph, which Repository fills in again from the commits. */
+    static CommitGraph read(File file) {
+        byte[] bytes = file.isFile() ? readContents(file) : new byte[0];
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE || in.getInt() != MAGIC || in.getInt() != VERSION) {
+            file.delete();
+            return new CommitGraph(file, 16);
+        }
+        int n = (bytes.length - HEADER_SIZE) / RECORD_SIZE;
+        CommitGraph graph = new CommitGraph(file, Math.max(16, n));
+        for (int i = 0; i < n; i++) {
+            in.get(graph.ids, i * ID_SIZE, ID_SIZE);
+            graph.parent1[i] = in.getInt();
+            graph.parent2[i] = in.getInt();
+            graph.generation[i] = in.getInt();
+            graph.time[i] = in.getLong();
+        }
+        graph.count = n;
+        graph.written = n;
+        return graph;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /** Returns the number of records in graph FILE, from its length alone. */
+    static int recordCount(File file) {
+        long length = file.length();
+        return length < HEADER_SIZE ? 0 : (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+    }
+
+    String idAt(int pos) {
+        return bytesToHex(Arrays.copyOfRange(ids, pos * ID_SIZE, (pos + 1) * ID_SIZE));
+    }
+
+    int firstParent(int pos) {
+        return parent1[pos];
+    }
+
+    /** Returns the position of commit ID, or -1 if it is not in the graph. */
+    int positionOf(String id) {
+        byte[] raw = hexToBytes(id);
+        if (lookup == null) {
+            lookup = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                lookup.putIfAbsent(prefix(ids, i * ID_SIZE), i);
+            }
+        }
+        Integer pos = lookup.get(prefix(raw, 0));
+        if (pos != null && sameId(pos, raw)) {
+            return pos;
+        }
+        if (pos != null) {
+            // two ids share their first 8 bytes: fall back to a scan
+            for (int i = 0; i < count; i++) {
+                if (sameId(i, raw)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /** Appends commit ID with parent positions PARENTS (at most two, all
+     *  already in the graph) made at TIMESTAMP; returns its position. */
+    int append(String id, int[] parents, long timestamp) {
+        if (count == parent1.length) {
+            int capacity = count * 2;
+            ids = Arrays.copyOf(ids, capacity * ID_SIZE);
+            parent1 = Arrays.copyOf(parent1, capacity);
+            parent2 = Arrays.copyOf(parent2, capacity);
+            generation = Arrays.copyOf(generation, capacity);
+            time = Arrays.copyOf(time, capacity);
+        }
+        int pos = count;
+        byte[] raw = hexToBytes(id);
+        System.arraycopy(raw, 0, ids, pos * ID_SIZE, ID_SIZE);
+        parent1[pos] = parents.length > 0 ? parents[0] : -1;
+        parent2[pos] = parents.length > 1 ? parents[1] : -1;
+        int gen = 0;
+        for (int p : parents) {
+            gen = Math.max(gen, generation[p]);
+        }
+        generation[pos] = gen + 1;
+        time[pos] = timestamp;
+        count += 1;
+        if (lookup != null) {
+            lookup.putIfAbsent(prefix(raw, 0), pos);
+        }
+        return pos;
+    }
+
+    /** Returns the positions of START and all its ancestors, in
+     *  breadth-first order. */
+    int[] ancestors(int start) {
+        boolean[] seen = new boolean[count];
+        int[] queue = new int[count];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = start;
+        seen[start] = true;
+        while (head < tail) {
+            int pos = queue[head++];
+            for (int p : new int[] {parent1[pos], parent2[pos]}) {
+                if (p >= 0 && !seen[p]) {
+                    seen[p] = true;
+                    queue[tail++] = p;
+                }
+            }
+        }
+        return Arrays.copyOf(queue, tail);
+    }
+
+    /** Returns true if ANCESTOR is DESCENDANT or one of its ancestors.
+     *  Commits whose generation is below ANCESTOR's are not explored. */
+    boolean isAncestor(int ancestor, int descendant) {
+        int floor = generation[ancestor];
+        boolean[] seen = new boolean[count];
+        int[] stack = new int[count];
+        int top = 0;
+        stack[top++] = descendant;
+        seen[descendant] = true;
+        while (top > 0) {
+            int pos = stack[--top];
+            if (pos == ancestor) {
+                return true;
+            }
+            for (int p : new int[] {parent1[pos], parent2[pos]}) {
+                if (p >= 0 && !seen[p] && generation[p] >= floor) {
+                    seen[p] = true;
+                    stack[top++] = p;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Returns a best common ancestor of A and B (see mergeBases): the
+     *  one with the largest generation, then the latest; -1 if none. */
+    int mergeBase(int a, int b) {
+        int[] bases = mergeBases(a, b);
+        int best = -1;
+        for (int pos : bases) {
+            if (best < 0 || generation[pos] > generation[best]
+                    || (generation[pos] == generation[best] && time[pos] > time[best])) {
+                best = pos;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the best common ancestors of A and B: the common ancestors
+     * that are not ancestors of another common ancestor.  There is more
+     * than one after criss-cross merges.
+     * <p>
+     * Both sides are walked at once, largest generation first, painting
+     * each commit with the side(s) it is reachable from.  A commit is only
+     * taken off the queue after all its descendants in the walk, so its
+     * paint is final then.  A commit painted from both sides is a base;
+     * everything below it is painted stale, which keeps the ancestors of a
+     * base from being reported.  Another base needs live (not stale) paint
+     * from both sides, so the walk stops once either side has none queued,
+     * and history below the bases is not visited.
+     */
+    int[] mergeBases(int a, int b) {
+        if (a == b) {
+            return new int[] {a};
+        }
+        byte[] flags = new byte[count];
+        Heap queue = new Heap();
+        int[] live = new int[2];
+        paint(a, SIDE_A, flags, queue, live);
+        paint(b, SIDE_B, flags, queue, live);
+
+        int[] res = new int[2];
+        int n = 0;
+        while (live[0] > 0 && live[1] > 0) {
+            int pos = queue.poll();
+            count(flags[pos], -1, live);
+            flags[pos] &= ~QUEUED;
+            byte paint = (byte) (flags[pos] & (SIDE_A | SIDE_B | STALE));
+            if (paint == (SIDE_A | SIDE_B)) {
+                if (n == res.length) {
+                    res = Arrays.copyOf(res, n * 2);
+                }
+                res[n++] = pos;
+                paint |= STALE;
+            }
+            if (parent1[pos] >= 0) {
+                paint(parent1[pos], paint, flags, queue, live);
+            }
+            if (parent2[pos] >= 0) {
+                paint(parent2[pos], paint, flags, queue, live);
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    /** Adds PAINT to the flags of POS, queueing it if it is not queued. */
+    private void paint(int pos, byte paint, byte[] flags, Heap queue, int[] live) {
+        byte old = flags[pos];
+        if ((old & paint) == paint) {
+            return;
+        }
+        if ((old & QUEUED) != 0) {
+            count(old, -1, live);
+        } else {
+            queue.add((long) generation[pos] << 32 | pos);
+        }
+        flags[pos] = (byte) (old | paint | QUEUED);
+        count(flags[pos], 1, live);
+    }
+
+    /** Adds SIGN to the counts in LIVE of queued commits with live paint
+     *  from each side, for a commit with FLAGS. */
+    private static void count(byte flags, int sign, int[] live) {
+        if ((flags & STALE) == 0) {
+            live[0] += (flags & SIDE_A) != 0 ? sign : 0;
+            live[1] += (flags & SIDE_B) != 0 ? sign : 0;
+        }
+    }
+
+    /** A binary max-heap of generation << 32 | position keys. */
+    private static class Heap {
+        private long[] keys = new long[16];
+        private int size;
+
+        void add(long key) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            int i = size++;
+            while (i > 0 && keys[(i - 1) / 2] < key) {
+                keys[i] = keys[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            keys[i] = key;
+        }
+
+        /** Removes the largest key and returns its position. */
+        int poll() {
+            long top = keys[0];
+            long last = keys[--size];
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && keys[child + 1] > keys[child]) {
+                    child += 1;
+                }
+                if (keys[child] <= last) {
+                    break;
+                }
+                keys[i] = keys[child];
+                i = child;
+            }
+            keys[i] = last;
+            return (int) top;
+        }
+    }
+
+    /** Appends the records added since the graph was read to its file. */
+    void write() {
+        if (written == count) {
+            return;
+        }
+        try {
+            if (written == 0 || file.length() != HEADER_SIZE + (long) written * RECORD_SIZE) {
+                // new file, or a torn record at the end: rewrite it whole
+                written = 0;
+                file.delete();
+            }
+            if (written > 0) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.seek(raf.length());
+                    raf.write(records(written, count));
+                }
+            } else {
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(file.toPath())))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.write(records(0, count));
+                }
+            }
+            written = count;
+        } catch (IOException excp) {
+            throw error("cannot write commit graph: %s", excp.getMessage());
+        }
+    }
+
+    private byte[] records(int from, int to) {
+        ByteBuffer out = ByteBuffer.allocate((to - from) * RECORD_SIZE);
+        for (int i = from; i < to; i++) {
+            out.put(ids, i * ID_SIZE, ID_SIZE);
+            out.putInt(parent1[i]);
+            out.putInt(parent2[i]);
+            out.putInt(generation[i]);
+            out.putLong(time[i]);
+        }
+        return out.array();
+    }
+
+    private boolean sameId(int pos, byte[] raw) {
+        int off = pos * ID_SIZE;
+        for (int k = 0; k < ID_SIZE; k++) {
+            if (ids[off + k] != raw[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long prefix(byte[] bytes, int off) {
+        long res = 0;
+        for (int k = 0; k < 8; k++) {
+            res = (res << 8) | (bytes[off + k] & 0xff);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,153 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/**
+ * Headers of all commits in the order they were stored, so global-log
+ * is one sequential read that never decodes a file map.
+ * <p>
+ * commit-journal
+ * -- "GJRN" [version] [record count] [length of the valid part]
+ * -- records: [20-byte id] [parent count] [20-byte parent id]...
+ *             [timestamp in ms] [message]
+ * <p>
+ * Messages are length-prefixed UTF-8.  Records are appended past the
+ * valid part and the header is updated last, so a torn append is
+ * ignored and overwritten by the next one.
+ */
+class CommitJournal {
+    private static final int MAGIC = 0x474a524e;   // "GJRN"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+
+    private final File file;
+    private int count;
+    private long length;
+    /** Records added since the journal was read, not written yet. */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int pendingCount;
+
+    private CommitJournal(File file, int count, long length) {
+        this.file = file;
+        this.count = count;
+        this.length = length;
+    }
+
+    /** Reads the header of the journal in FILE; a missing or unreadable
+     *  journal counts as empty and is rewritten by the next write(). */
+    static CommitJournal read(File file) {
+        if (file.isFile()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                if (raf.length() >= HEADER_SIZE && raf.readInt() == MAGIC && raf.readInt() == VERSION) {
+                    int count = raf.readInt();
+                    long length = raf.readLong();
+                    if (count >= 0 && length >= HEADER_SIZE && length <= raf.length()) {
+                        return new CommitJournal(file, count, length);
+                    }
+                }
+            } catch (IOException excp) {
+                // fall through to an empty journal
+            }
+        }
+        return new CommitJournal(file, 0, 0);
+    }
+
+    /** Writes a new journal of COMMITS into FILE and returns it. */
+    static CommitJournal build(File file, Iterable<Commit> commits) {
+        file.delete();
+        CommitJournal journal = new CommitJournal(file, 0, 0);
+        for (Commit commit : commits) {
+            journal.add(commit);
+        }
+        journal.write();
+        return journal;
+    }
+
+    /** Number of commits in the journal. */
+    int size() {
+        return count + pendingCount;
+    }
+
+    /** Adds the header of COMMIT; it is written by write(). */
+    void add(Commit commit) {
+        try {
+            DataOutputStream out = new DataOutputStream(pending);
+            writeId(out, commit.getID());
+            out.writeByte(commit.getParents().size());
+            for (String parent : commit.getParents()) {
+                writeId(out, parent);
+            }
+            out.writeLong(commit.getTimestamp().getTime());
+            writeString(out, commit.getMessage());
+            pendingCount += 1;
+        } catch (IOException excp) {
+            throw error("Internal error encoding commit.");
+        }
+    }
+
+    /** Appends the records added since the journal was read to its file. */
+    void write() {
+        if (pendingCount == 0) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (length == 0) {
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(0);
+                raf.writeLong(HEADER_SIZE);
+                length = HEADER_SIZE;
+            }
+            raf.seek(length);
+            raf.write(pending.toByteArray());
+            count += pendingCount;
+            length += pending.size();
+            raf.seek(8);
+            raf.writeInt(count);
+            raf.writeLong(length);
+            pending.reset();
+            pendingCount = 0;
+        } catch (IOException excp) {
+            throw error("cannot write commit journal: %s", excp.getMessage());
+        }
+    }
+
+    /** Prints the log entry of every written commit to OUT, oldest first. */
+    void print(PrintStream out) {
+        if (count == 0) {
+            return;
+        }
+        DateFormat dateFormat = Commit.dateFormat();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath()), 1 << 16))) {
+            in.skipBytes(HEADER_SIZE);
+            for (int i = 0; i < count; i++) {
+                String id = readId(in);
+                int parentCount = in.readByte();
+                List<String> parents = new ArrayList<>(parentCount);
+                for (int k = 0; k < parentCount; k++) {
+                    parents.add(readId(in));
+                }
+                String date = dateFormat.format(new Date(in.readLong()));
+                out.print(Commit.getLogEntry(id, parents, date, readString(in)));
+            }
+        } catch (IOException excp) {
+            throw error("cannot read commit journal: %s", excp.getMessage());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+
+import static gitlet.Utils.*;
+
+/**
+ * Binary deltas between two versions of a file.
+ * <p>
+ * A delta is [target length] followed by instructions:
+ * -- COPY [offset] [length]: copy length bytes of the base from offset
+ * -- INSERT [length] [bytes]: append the given literal bytes
+ * All numbers are unsigned varints.
+ * <p>
+ * create() indexes the base in BLOCK-byte blocks and slides a rolling hash
+ * over the target, so both directions are linear in the input sizes.
+ */
+class Delta {
+    private static final int COPY = 0;
+    private static final int INSERT = 1;
+
+    /** Size of the indexed base blocks, and the shortest copy emitted. */
+    private static final int BLOCK = 16;
+    private static final int PRIME = 31;
+
+    /** Returns a delta that rebuilds TARGET from BASE. */
+    static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, target.length);
+
+        int[] table = indexBlocks(base);
+        int mask = table.length - 1;
+        int power = 1;
+        for (int k = 1; k < BLOCK; k++) {
+            power *= PRIME;
+        }
+
+        int literalStart = 0;
+        int i = 0;
+        int hash = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (i + BLOCK <= target.length) {
+            int candidate = table.length == 0 ? 0 : table[hash & mask];
+            if (candidate > 0 && matches(base, candidate - 1, target, i)) {
+                int baseStart = candidate - 1;
+                int start = i;
+                // extend backwards over pending literals
+                while (start > literalStart && baseStart > 0
+                        && base[baseStart - 1] == target[start - 1]) {
+                    start--;
+                    baseStart--;
+                }
+                int end = i + BLOCK;
+                int baseEnd = candidate - 1 + BLOCK;
+                while (end < target.length && baseEnd < base.length
+                        && base[baseEnd] == target[end]) {
+                    end++;
+                    baseEnd++;
+                }
+                writeInsert(out, target, literalStart, start);
+                out.write(COPY);
+                writeVarint(out, baseStart);
+                writeVarint(out, end - start);
+                i = end;
+                literalStart = end;
+                if (i + BLOCK <= target.length) {
+                    hash = hash(target, i);
+                }
+                continue;
+            }
+            if (i + BLOCK < target.length) {
+                hash = (hash - target[i] * power) * PRIME + target[i + BLOCK];
+            }
+            i++;
+        }
+        writeInsert(out, target, literalStart, target.length);
+        return out.toByteArray();
+    }
+
+    /** Returns the target rebuilt by applying DELTA to BASE. */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        int length = (int) readVarint(delta, pos);
+        byte[] res = new byte[length];
+        int n = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]++];
+            if (op == COPY) {
+                int offset = (int) readVarint(delta, pos);
+                int len = (int) readVarint(delta, pos);
+                System.arraycopy(base, offset, res, n, len);
+                n += len;
+            } else if (op == INSERT) {
+                int len = (int) readVarint(delta, pos);
+                System.arraycopy(delta, pos[0], res, n, len);
+                pos[0] += len;
+                n += len;
+            } else {
+                throw error("corrupt delta");
+            }
+        }
+        if (n != length) {
+            throw error("corrupt delta");
+        }
+        return res;
+    }
+
+    /** Hash table of block offsets (+1, so 0 means empty) keyed by the
+     *  rolling hash of each BLOCK-aligned block of BASE. */
+    private static int[] indexBlocks(byte[] base) {
+        int blocks = base.length / BLOCK;
+        if (blocks == 0) {
+            return new int[0];
+        }
+        int size = Integer.highestOneBit(blocks * 2 - 1) << 1;
+        int[] table = new int[size];
+        for (int off = 0; off + BLOCK <= base.length; off += BLOCK) {
+            int slot = hash(base, off) & (size - 1);
+            if (table[slot] == 0) {
+                table[slot] = off + 1;
+            }
+        }
+        return table;
+    }
+
+    private static int hash(byte[] data, int off) {
+        int h = 0;
+        for (int k = 0; k < BLOCK; k++) {
+            h = h * PRIME + data[off + k];
+        }
+        return h;
+    }
+
+    private static boolean matches(byte[] base, int baseOff, byte[] target, int off) {
+        for (int k = 0; k < BLOCK; k++) {
+            if (base[baseOff + k] != target[off + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int from, int to) {
+        if (to > from) {
+            out.write(INSERT);
+            writeVarint(out, to - from);
+            out.write(data, from, to - from);
+        }
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /** Reads a varint from DATA at POS[0], advancing POS[0] past it. */
+    static long readVarint(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = data[pos[0]++] & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package gitlet;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Longest common subsequences of two sequences of symbols (line numbers
+ * after interning), by Myers' O((N+M)D) algorithm in its linear-space
+ * form: find the middle of an optimal edit path by searching from both
+ * ends at once, then recurse on the two halves.
+ * <p>
+ * Symbols that occur in only one of the sequences can never match, so
+ * they are set aside first; files that were mostly rewritten then cost
+ * little more than files with a few edits.  Common prefixes and suffixes
+ * are matched without searching.
+ */
+class Diff {
+    private final int[] a;
+    private final int[] b;
+    /** matches[i]: the index in b matched with a[i], or -1. */
+    private final int[] matches;
+
+    private Diff(int[] a, int[] b) {
+        this.a = a;
+        this.b = b;
+        this.matches = new int[a.length];
+        Arrays.fill(matches, -1);
+    }
+
+    /**
+     * Returns, for each symbol of A, the index of the symbol of B it is
+     * matched with in a longest common subsequence of A and B, or -1.
+     * Matched indices increase with the index into A.
+     */
+    static int[] match(int[] a, int[] b) {
+        int[] aIndex = commonIndices(a, b);
+        int[] bIndex = commonIndices(b, a);
+        Diff diff = new Diff(select(a, aIndex), select(b, bIndex));
+        diff.compare(0, diff.a.length, 0, diff.b.length);
+
+        int[] res = new int[a.length];
+        Arrays.fill(res, -1);
+        for (int i = 0; i < aIndex.length; i++) {
+            if (diff.matches[i] >= 0) {
+                res[aIndex[i]] = bIndex[diff.matches[i]];
+            }
+        }
+        return res;
+    }
+
+    /** Returns the indices of the symbols of S that also occur in OTHER. */
+    private static int[] commonIndices(int[] s, int[] other) {
+        Set<Integer> present = new HashSet<>();
+        for (int symbol : other) {
+            present.add(symbol);
+        }
+        int[] res = new int[s.length];
+        int n = 0;
+        for (int i = 0; i < s.length; i++) {
+            if (present.contains(s[i])) {
+                res[n++] = i;
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    private static int[] select(int[] s, int[] indices) {
+        int[] res = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            res[i] = s[indices[i]];
+        }
+        return res;
+    }
+
+    /** Matches a[aLo, aHi) against b[bLo, bHi). */
+    private void compare(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            matches[aLo++] = bLo++;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            matches[--aHi] = --bHi;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            return;
+        }
+        long split = middle(aLo, aHi, bLo, bHi);
+        if (split < 0) {
+            return;
+        }
+        int x = (int) (split >>> 32);
+        int y = (int) split;
+        compare(aLo, aLo + x, bLo, bLo + y);
+        compare(aLo + x, aHi, bLo + y, bHi);
+    }
+
+    /**
+     * Returns a point (x, y), relative to (ALO, BLO), on an optimal edit
+     * path from the start to the end of a[aLo, aHi) and b[bLo, bHi),
+     * packed as x << 32 | y, where the paths searched forwards from the
+     * start and backwards from the end first overlap; -1 if there is
+     * none, which cannot happen for nonempty ranges.
+     */
+    private long middle(int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD;
+        int length = 2 * maxD + 2;
+        // forward[offset + k]: furthest x reached on diagonal k = x - y;
+        // backward[offset + k]: the same, counted from the ends
+        int[] forward = new int[length];
+        int[] backward = new int[length];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        // with an odd delta the paths meet on a forward step, else backward
+        boolean front = (delta & 1) != 0;
+        int kStart = 0;
+        int kEnd = 0;
+        int rStart = 0;
+        int rEnd = 0;
+        for (int d = 0; d < maxD; d++) {
+            for (int k = -d + kStart; k <= d - kEnd; k += 2) {
+                int i = offset + k;
+                int x = k == -d || (k != d && forward[i - 1] < forward[i + 1])
+                        ? forward[i + 1] : forward[i - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x++;
+                    y++;
+                }
+                forward[i] = x;
+                if (x > n) {
+                    kEnd += 2;
+                } else if (y > m) {
+                    kStart += 2;
+                } else if (front) {
+                    int j = offset + delta - k;
+                    if (j >= 0 && j < length && backward[j] != -1 && x >= n - backward[j]) {
+                        return (long) x << 32 | y;
+                    }
+                }
+            }
+            for (int k = -d + rStart; k <= d - rEnd; k += 2) {
+                int i = offset + k;
+                int x = k == -d || (k != d && backward[i - 1] < backward[i + 1])
+                        ? backward[i + 1] : backward[i - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aHi - 1 - x] == b[bHi - 1 - y]) {
+                    x++;
+                    y++;
+                }
+                backward[i] = x;
+                if (x > n) {
+                    rEnd += 2;
+                } else if (y > m) {
+                    rStart += 2;
+                } else if (!front) {
+                    int j = offset + delta - k;
+                    if (j >= 0 && j < length && forward[j] != -1) {
+                        int fx = forward[j];
+                        int fy = offset + fx - j;
+                        if (fx >= n - x) {
+                            return (long) fx << 32 | fy;
+                        }
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,58 @@
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Iterates over a commit and its ancestors breadth-first, reading each
+ * commit only when it is reached.  Commits in the boundary, and so their
+ * ancestors too unless reachable another way, are skipped; every commit
+ * is returned at most once.
+ */
+class HistoryIterator implements Iterator<Commit> {
+    private final Function<String, Commit> commits;
+    private final Predicate<String> boundary;
+    private final Deque<String> queue = new ArrayDeque<>();
+    private final Set<String> seen = new HashSet<>();
+
+    /** Iterates from commit STARTID, reading commits through COMMITS and
+     *  stopping at commits for which BOUNDARY is true. */
+    HistoryIterator(String startId, Function<String, Commit> commits, Predicate<String> boundary) {
+        this.commits = commits;
+        this.boundary = boundary;
+        visit(startId);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !queue.isEmpty();
+    }
+
+    @Override
+    public Commit next() {
+        if (queue.isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        String id = queue.poll();
+        Commit commit = commits.apply(id);
+        if (commit == null) {
+            throw new IllegalStateException("missing commit " + id);
+        }
+        for (String parent : commit.getParents()) {
+            visit(parent);
+        }
+        return commit;
+    }
+
+    private void visit(String id) {
+        if (seen.add(id) && !boundary.test(id)) {
+            queue.add(id);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * Resolves abbreviated ids without listing every object.
+ * <p>
+ * commit-ids
+ * -- "GIDS" [version] [sorted count]
+ * -- fanout: 256 ints, fanout[b] = number of sorted ids whose first byte is <= b
+ * -- sorted ids: [20-byte id] ...
+ * -- tail: [20-byte id] ... in the order they were added
+ * <p>
+ * A prefix is found by a binary search over one fanout bucket of the
+ * sorted ids plus a scan of the tail.  New ids are appended to the tail;
+ * once it holds more than MAX_TAIL ids the file is rewritten sorted, so
+ * a lookup never scans more than MAX_TAIL unsorted ids.  The tail length
+ * is derived from the file length, so a torn final id is ignored.
+ */
+class IdIndex {
+    private static final int MAGIC = 0x47494453;   // "GIDS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int FANOUT_SIZE = 256 * 4;
+    private static final int ID_SIZE = 20;
+
+    /** Largest number of unsorted ids kept before the file is rewritten. */
+    static final int MAX_TAIL = 256;
+
+    private final File file;
+    private final MappedByteBuffer map;
+    private final int sorted;
+    private final int tail;
+    /** Ids added since the file was read, not written yet. */
+    private final List<String> added = new ArrayList<>();
+
+    private IdIndex(File file, MappedByteBuffer map, int sorted, int tail) {
+        this.file = file;
+        this.map = map;
+        this.sorted = sorted;
+        this.tail = tail;
+    }
+
+    /** Reads the index in FILE, or returns null if FILE is missing or
+     *  unreadable, in which case it has to be rebuilt. */
+    static IdIndex read(File file) {
+        long length = file.length();
+        if (!file.isFile() || length < HEADER_SIZE + FANOUT_SIZE) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                return null;
+            }
+            int sorted = map.getInt(8);
+            long rest = length - HEADER_SIZE - FANOUT_SIZE - (long) sorted * ID_SIZE;
+            if (rest < 0) {
+                return null;
+            }
+            return new IdIndex(file, map, sorted, (int) (rest / ID_SIZE));
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /** Writes a new index holding IDS into FILE and returns it. */
+    static IdIndex build(File file, Collection<String> ids) {
+        writeSorted(file, new TreeSet<>(ids));
+        return read(file);
+    }
+
+    /** Returns the distinct ids starting with the hexadecimal PREFIX,
+     *  stopping once LIMIT have been found. */
+    List<String> resolve(String prefix, int limit) {
+        TreeSet<String> res = new TreeSet<>();
+        if (!isHex(prefix) || prefix.length() > 2 * ID_SIZE) {
+            return new ArrayList<>(res);
+        }
+        // ids matching PREFIX lie between PREFIX padded with 0s and with fs
+        byte[] low = hexToBytes(pad(prefix, '0'));
+        int from = bucketStart(low[0] & 0xff);
+        int to = bucketStart((hexToBytes(pad(prefix, 'f'))[0] & 0xff) + 1);
+        for (int i = lowerBound(from, to, low); i < to && res.size() < limit; i++) {
+            String id = idAt(sortedPosition(i));
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            res.add(id);
+        }
+        for (int i = 0; i < tail && res.size() < limit; i++) {
+            String id = idAt(sortedPosition(sorted + i));
+            if (id.startsWith(prefix)) {
+                res.add(id);
+            }
+        }
+        for (String id : added) {
+            if (res.size() < limit && id.startsWith(prefix)) {
+                res.add(id);
+            }
+        }
+        return new ArrayList<>(res);
+    }
+
+    /** Returns the number of ids, including those not written yet. */
+    int size() {
+        return sorted + tail + added.size();
+    }
+
+    /** Adds object ID; it is written by write(). */
+    void add(String id) {
+        added.add(id);
+    }
+
+    /** Appends the ids added since the index was read to its file, or
+     *  rewrites it sorted if the tail grew beyond MAX_TAIL. */
+    void write() {
+        if (added.isEmpty()) {
+            return;
+        }
+        long expected = HEADER_SIZE + FANOUT_SIZE + (long) (sorted + tail) * ID_SIZE;
+        if (tail + added.size() > MAX_TAIL || file.length() != expected) {
+            TreeSet<String> ids = new TreeSet<>(added);
+            for (int i = 0; i < sorted + tail; i++) {
+                ids.add(idAt(sortedPosition(i)));
+            }
+            writeSorted(file, ids);
+        } else {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(expected);
+                for (String id : added) {
+                    raf.write(hexToBytes(id));
+                }
+            } catch (IOException excp) {
+                throw error("cannot write id index: %s", excp.getMessage());
+            }
+        }
+        added.clear();
+    }
+
+    private static void writeSorted(File file, TreeSet<String> ids) {
+        try {
+            File tmp = File.createTempFile("ids", ".tmp", file.getParentFile());
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(ids.size());
+                int[] fanout = new int[256];
+                for (String id : ids) {
+                    fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+                }
+                int total = 0;
+                for (int b = 0; b < 256; b++) {
+                    total += fanout[b];
+                    out.writeInt(total);
+                }
+                for (String id : ids) {
+                    out.write(hexToBytes(id));
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw error("cannot write id index: %s", excp.getMessage());
+        }
+    }
+
+    /** Number of sorted ids whose first byte is below B. */
+    private int bucketStart(int b) {
+        return b == 0 ? 0 : map.getInt(HEADER_SIZE + (b - 1) * 4);
+    }
+
+    /** Returns the first sorted position in [FROM, TO) whose id is not
+     *  below RAW. */
+    private int lowerBound(int from, int to, byte[] raw) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareId(sortedPosition(mid), raw) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int compareId(int pos, byte[] raw) {
+        for (int k = 0; k < ID_SIZE; k++) {
+            int a = map.get(pos + k) & 0xff;
+            int b = raw[k] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    private String idAt(int pos) {
+        byte[] raw = new byte[ID_SIZE];
+        for (int k = 0; k < ID_SIZE; k++) {
+            raw[k] = map.get(pos + k);
+        }
+        return bytesToHex(raw);
+    }
+
+    private static int sortedPosition(int i) {
+        return HEADER_SIZE + FANOUT_SIZE + i * ID_SIZE;
+    }
+
+    private static String pad(String prefix, char digit) {
+        StringBuilder sb = new StringBuilder(prefix);
+        while (sb.length() < 2 * ID_SIZE) {
+            sb.append(digit);
+        }
+        return sb.toString();
+    }
+
+    private static boolean isHex(String str) {
+        if (str.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            if (Character.digit(str.charAt(i), 16) < 0 || Character.isUpperCase(str.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
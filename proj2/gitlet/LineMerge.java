@@ -0,0 +1,138 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Three-way merge of the lines of a file, in the manner of diff3.
+ * <p>
+ * Both versions are diffed against the split point version (see Diff).
+ * Base lines matched in both are stable; each stretch between them was
+ * changed on one side, on both sides the same way, or on both sides
+ * differently.  Only the last is a conflict, written as
+ * <pre>
+ * &lt;&lt;&lt;&lt;&lt;&lt;&lt; HEAD
+ * lines of the current branch
+ * =======
+ * lines of the given branch
+ * &gt;&gt;&gt;&gt;&gt;&gt;&gt;
+ * </pre>
+ * Lines keep their terminators and are compared as bytes (read as
+ * ISO-8859-1), so any encoding and a missing final newline survive.
+ */
+class LineMerge {
+    private static final String START = "<<<<<<< HEAD\n";
+    private static final String SEPARATOR = "=======\n";
+    private static final String END = ">>>>>>>\n";
+
+    /** The merged content and whether it holds conflicts. */
+    static class Result {
+        final byte[] content;
+        final boolean conflict;
+
+        Result(byte[] content, boolean conflict) {
+            this.content = content;
+            this.conflict = conflict;
+        }
+    }
+
+    /** Returns the merge of the changes from BASE to HEAD and from BASE
+     *  to OTHER. */
+    static Result merge(byte[] base, byte[] head, byte[] other) {
+        Map<String, Integer> symbols = new HashMap<>();
+        List<String> baseLines = lines(base);
+        List<String> headLines = lines(head);
+        List<String> otherLines = lines(other);
+        int[] baseSymbols = intern(baseLines, symbols);
+        int[] headMatches = Diff.match(baseSymbols, intern(headLines, symbols));
+        int[] otherMatches = Diff.match(baseSymbols, intern(otherLines, symbols));
+
+        StringBuilder out = new StringBuilder();
+        boolean conflict = false;
+        int o = 0;
+        int h = 0;
+        int t = 0;
+        while (o < baseLines.size() || h < headLines.size() || t < otherLines.size()) {
+            if (o < baseLines.size() && headMatches[o] == h && otherMatches[o] == t) {
+                out.append(baseLines.get(o));
+                o++;
+                h++;
+                t++;
+                continue;
+            }
+            // the unstable stretch runs up to the next base line matched in both
+            int next = o;
+            while (next < baseLines.size() && (headMatches[next] < 0 || otherMatches[next] < 0)) {
+                next++;
+            }
+            int headEnd = next < baseLines.size() ? headMatches[next] : headLines.size();
+            int otherEnd = next < baseLines.size() ? otherMatches[next] : otherLines.size();
+            List<String> baseChunk = baseLines.subList(o, next);
+            List<String> headChunk = headLines.subList(h, headEnd);
+            List<String> otherChunk = otherLines.subList(t, otherEnd);
+            if (headChunk.equals(baseChunk)) {
+                append(out, otherChunk);
+            } else if (otherChunk.equals(baseChunk) || otherChunk.equals(headChunk)) {
+                append(out, headChunk);
+            } else {
+                conflict = true;
+                out.append(START);
+                appendTerminated(out, headChunk);
+                out.append(SEPARATOR);
+                appendTerminated(out, otherChunk);
+                out.append(END);
+            }
+            o = next;
+            h = headEnd;
+            t = otherEnd;
+        }
+        return new Result(out.toString().getBytes(StandardCharsets.ISO_8859_1), conflict);
+    }
+
+    /** Returns the lines of CONTENT, each with its '\n' if it has one. */
+    private static List<String> lines(byte[] content) {
+        String text = new String(content, StandardCharsets.ISO_8859_1);
+        List<String> res = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            end = end < 0 ? text.length() : end + 1;
+            res.add(text.substring(start, end));
+            start = end;
+        }
+        return res;
+    }
+
+    /** Returns the symbol of each of LINES, numbering new lines in SYMBOLS. */
+    private static int[] intern(List<String> lines, Map<String, Integer> symbols) {
+        int[] res = new int[lines.size()];
+        for (int i = 0; i < res.length; i++) {
+            Integer symbol = symbols.get(lines.get(i));
+            if (symbol == null) {
+                symbol = symbols.size();
+                symbols.put(lines.get(i), symbol);
+            }
+            res[i] = symbol;
+        }
+        return res;
+    }
+
+    private static void append(StringBuilder out, List<String> lines) {
+        for (String line : lines) {
+            out.append(line);
+        }
+    }
+
+    /** Appends LINES, ending the last one with '\n' so a marker follows
+     *  on a line of its own. */
+    private static void appendTerminated(StringBuilder out, List<String> lines) {
+        append(out, lines);
+        if (!lines.isEmpty() && !lines.get(lines.size() - 1).endsWith("\n")) {
+            out.append('\n');
+        }
+    }
+}
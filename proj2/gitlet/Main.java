@@ -1,5 +1,6 @@
 package gitlet;
 
+import java.util.Arrays;
 
 /** Driver class for Gitlet, a subset of the Git version-control system.
  *  @author vv
@@ -23,10 +24,12 @@ public class Main {
                 repo.init();
                 break;
             case "add":
-                // handle the `add [filename]` command
-                repo.checkCommandLength(args.length, 2);
+                // handle the `add [file or directory]...` command
+                if (args.length < 2) {
+                    repo.messageIncorrectOperands();
+                }
                 repo.checkIfInitDirectoryExists();
-                repo.add(args[1]);
+                repo.add(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "rm":
                 repo.checkCommandLength(args.length, 2);
@@ -123,9 +126,15 @@ public class Main {
                 repo.checkIfInitDirectoryExists();
                 repo.pull(args[1], args[2]);
                 break;
+            case "gc":
+                repo.checkCommandLength(args.length, 1);
+                repo.checkIfInitDirectoryExists();
+                repo.gc();
+                break;
             default:
                 System.out.println("No command with that name exists.");
                 System.exit(0);
         }
+        repo.flush();
     }
 }
@@ -0,0 +1,331 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * Commit messages with a trigram index over them, so find only checks
+ * the commits whose messages contain every trigram of the search string.
+ * <p>
+ * message-index, a snapshot rewritten whole:
+ * -- "GMSG" [version] [commit count]
+ * -- [20-byte id] ... in commit order
+ * -- message starts: commit count + 1 ints into the message bytes
+ * -- [trigram count] [trigram] ... sorted, each 3 chars packed into a long
+ * -- posting starts: trigram count + 1 ints into the postings
+ * -- postings: ascending commit numbers, per trigram
+ * -- message bytes: UTF-8
+ * <p>
+ * message-log, the commits added since the snapshot:
+ * -- [20-byte id] [length] [UTF-8 message] ...
+ * <p>
+ * New commits are appended to the log, which is folded into a new
+ * snapshot once it holds more than MAX_LOG commits.  A torn final log
+ * record is ignored; Repository rebuilds the index from the commit store
+ * when its size disagrees with the commit graph.
+ */
+class MessageIndex {
+    private static final int MAGIC = 0x474d5347;   // "GMSG"
+    private static final int VERSION = 1;
+    private static final int ID_SIZE = 20;
+
+    /** Largest number of commits kept in the log before it is folded
+     *  into the snapshot. */
+    static final int MAX_LOG = 512;
+
+    private final File snapshotFile;
+    private final File logFile;
+
+    /** Snapshot contents; messages are decoded on demand. */
+    private int count;
+    private byte[] ids;
+    private int[] messageStarts;
+    private long[] trigrams;
+    private int[] postingStarts;
+    private int[] postings;
+    private byte[] messages;
+
+    /** Log contents, in order, and the length of its valid part. */
+    private final List<String> logIds = new ArrayList<>();
+    private final List<String> logMessages = new ArrayList<>();
+    private long logLength;
+    /** Number of log records already in the log file. */
+    private int logWritten;
+
+    private MessageIndex(File snapshotFile, File logFile) {
+        this.snapshotFile = snapshotFile;
+        this.logFile = logFile;
+        this.ids = new byte[0];
+        this.messageStarts = new int[] {0};
+        this.trigrams = new long[0];
+        this.postingStarts = new int[] {0};
+        this.postings = new int[0];
+        this.messages = new byte[0];
+    }
+
+    /** Reads the index from SNAPSHOTFILE and LOGFILE; missing or
+     *  unreadable parts count as empty. */
+    static MessageIndex read(File snapshotFile, File logFile) {
+        MessageIndex index = new MessageIndex(snapshotFile, logFile);
+        if (snapshotFile.isFile() && !index.readSnapshot()) {
+            index = new MessageIndex(snapshotFile, logFile);
+        }
+        if (logFile.isFile()) {
+            index.readLog();
+        }
+        return index;
+    }
+
+    /** Writes a new index of the commit messages in MESSAGES, keyed by
+     *  commit id, and returns it. */
+    static MessageIndex build(File snapshotFile, File logFile, Map<String, String> messages) {
+        MessageIndex index = new MessageIndex(snapshotFile, logFile);
+        index.writeSnapshot(new ArrayList<>(messages.keySet()), new ArrayList<>(messages.values()));
+        logFile.delete();
+        return read(snapshotFile, logFile);
+    }
+
+    /** Number of commits in the index. */
+    int size() {
+        return count + logIds.size();
+    }
+
+    /** Adds commit ID with message MESSAGE; it is written by write(). */
+    void add(String id, String message) {
+        logIds.add(id);
+        logMessages.add(message);
+    }
+
+    /** Returns the ids of the commits whose message contains TARGET, sorted. */
+    List<String> find(String target) {
+        TreeSet<String> res = new TreeSet<>();
+        for (int doc : candidates(target)) {
+            if (message(doc).contains(target)) {
+                res.add(idAt(doc));
+            }
+        }
+        for (int i = 0; i < logIds.size(); i++) {
+            if (logMessages.get(i).contains(target)) {
+                res.add(logIds.get(i));
+            }
+        }
+        return new ArrayList<>(res);
+    }
+
+    /** Appends the commits added since the index was read to the log, or
+     *  folds everything into a new snapshot once the log is too long. */
+    void write() {
+        if (logWritten == logIds.size()) {
+            return;
+        }
+        if (logIds.size() > MAX_LOG) {
+            List<String> allIds = new ArrayList<>(count + logIds.size());
+            List<String> allMessages = new ArrayList<>(count + logIds.size());
+            for (int doc = 0; doc < count; doc++) {
+                allIds.add(idAt(doc));
+                allMessages.add(message(doc));
+            }
+            allIds.addAll(logIds);
+            allMessages.addAll(logMessages);
+            writeSnapshot(allIds, allMessages);
+            logFile.delete();
+            logLength = 0;
+            logWritten = logIds.size();
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+            // drop a torn record left by a crash before appending
+            raf.setLength(logLength);
+            raf.seek(logLength);
+            for (int i = logWritten; i < logIds.size(); i++) {
+                byte[] message = logMessages.get(i).getBytes(StandardCharsets.UTF_8);
+                raf.write(hexToBytes(logIds.get(i)));
+                raf.writeInt(message.length);
+                raf.write(message);
+            }
+            logLength = raf.getFilePointer();
+            logWritten = logIds.size();
+        } catch (IOException excp) {
+            throw error("cannot write message index: %s", excp.getMessage());
+        }
+    }
+
+    /** Returns the snapshot commits whose messages may contain TARGET:
+     *  those having all of its trigrams, or all commits if TARGET is
+     *  shorter than a trigram. */
+    private int[] candidates(String target) {
+        if (target.length() < 3) {
+            int[] all = new int[count];
+            for (int doc = 0; doc < count; doc++) {
+                all[doc] = doc;
+            }
+            return all;
+        }
+        int[] res = null;
+        for (long trigram : trigramsOf(target)) {
+            int i = Arrays.binarySearch(trigrams, trigram);
+            if (i < 0) {
+                return new int[0];
+            }
+            int[] list = Arrays.copyOfRange(postings, postingStarts[i], postingStarts[i + 1]);
+            res = res == null ? list : intersect(res, list);
+            if (res.length == 0) {
+                break;
+            }
+        }
+        return res;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] res = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                res[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    /** Returns the distinct trigrams of STR, each packed into a long. */
+    private static TreeSet<Long> trigramsOf(String str) {
+        TreeSet<Long> res = new TreeSet<>();
+        for (int i = 0; i + 3 <= str.length(); i++) {
+            res.add(((long) str.charAt(i) << 32) | ((long) str.charAt(i + 1) << 16) | str.charAt(i + 2));
+        }
+        return res;
+    }
+
+    private String idAt(int doc) {
+        return bytesToHex(Arrays.copyOfRange(ids, doc * ID_SIZE, (doc + 1) * ID_SIZE));
+    }
+
+    private String message(int doc) {
+        int start = messageStarts[doc];
+        return new String(messages, start, messageStarts[doc + 1] - start, StandardCharsets.UTF_8);
+    }
+
+    private boolean readSnapshot() {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(readContents(snapshotFile));
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return false;
+            }
+            count = in.getInt();
+            ids = new byte[count * ID_SIZE];
+            in.get(ids);
+            messageStarts = new int[count + 1];
+            in.asIntBuffer().get(messageStarts);
+            in.position(in.position() + messageStarts.length * 4);
+            trigrams = new long[in.getInt()];
+            in.asLongBuffer().get(trigrams);
+            in.position(in.position() + trigrams.length * 8);
+            postingStarts = new int[trigrams.length + 1];
+            in.asIntBuffer().get(postingStarts);
+            in.position(in.position() + postingStarts.length * 4);
+            postings = new int[postingStarts[trigrams.length]];
+            in.asIntBuffer().get(postings);
+            in.position(in.position() + postings.length * 4);
+            messages = new byte[messageStarts[count]];
+            in.get(messages);
+            return true;
+        } catch (RuntimeException excp) {
+            // truncated or garbled: Repository notices the missing commits
+            return false;
+        }
+    }
+
+    private void readLog() {
+        ByteBuffer in = ByteBuffer.wrap(readContents(logFile));
+        byte[] raw = new byte[ID_SIZE];
+        while (in.remaining() >= ID_SIZE + 4) {
+            in.get(raw);
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                break;
+            }
+            byte[] message = new byte[length];
+            in.get(message);
+            logIds.add(bytesToHex(raw));
+            logMessages.add(new String(message, StandardCharsets.UTF_8));
+            logLength = in.position();
+        }
+        logWritten = logIds.size();
+    }
+
+    /** Writes the commits ALLIDS with messages ALLMESSAGES as the new snapshot,
+     *  through a temporary file. */
+    private void writeSnapshot(List<String> allIds, List<String> allMessages) {
+        TreeMap<Long, List<Integer>> index = new TreeMap<>();
+        List<byte[]> encoded = new ArrayList<>(allMessages.size());
+        for (int doc = 0; doc < allMessages.size(); doc++) {
+            String message = allMessages.get(doc);
+            encoded.add(message.getBytes(StandardCharsets.UTF_8));
+            for (long trigram : trigramsOf(message)) {
+                index.computeIfAbsent(trigram, k -> new ArrayList<>()).add(doc);
+            }
+        }
+        try {
+            File tmp = File.createTempFile("message-index", ".tmp", snapshotFile.getParentFile());
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(allIds.size());
+                for (String id : allIds) {
+                    out.write(hexToBytes(id));
+                }
+                int start = 0;
+                out.writeInt(start);
+                for (byte[] message : encoded) {
+                    start += message.length;
+                    out.writeInt(start);
+                }
+                out.writeInt(index.size());
+                for (long trigram : index.keySet()) {
+                    out.writeLong(trigram);
+                }
+                start = 0;
+                out.writeInt(start);
+                for (List<Integer> list : index.values()) {
+                    start += list.size();
+                    out.writeInt(start);
+                }
+                for (List<Integer> list : index.values()) {
+                    for (int doc : list) {
+                        out.writeInt(doc);
+                    }
+                }
+                for (byte[] message : encoded) {
+                    out.write(message);
+                }
+            }
+            Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw error("cannot write message index: %s", excp.getMessage());
+        }
+    }
+}
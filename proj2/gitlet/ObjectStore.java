@@ -0,0 +1,238 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * Stores objects (commits or blobs) by id.
+ * New objects are written loose, one file per object in LOOSE_DIR, as
+ * xx/yyyy... where xx are the first two digits of the id, so no single
+ * directory grows past a 256th of the objects;
+ * pack() migrates every loose object into a new Pack in PACK_DIR.
+ * Reads look at the loose file first, then at the packs.
+ * Objects older versions wrote directly into LOOSE_DIR are moved into
+ * their subdirectories on first use.
+ * Objects are written to a temporary file and then moved into place, so
+ * several threads may store objects, even the same one, at once.
+ */
+class ObjectStore {
+    /** Prefix of objects still being written. */
+    private static final String TEMP_PREFIX = "tmp-";
+
+    private final File looseDir;
+    private final File packDir;
+
+    /** The packs in packDir, opened on first use. */
+    private List<Pack> packs;
+
+    /** True once flat loose objects have been moved into subdirectories. */
+    private boolean migrated;
+
+    ObjectStore(File looseDir, File packDir) {
+        this.looseDir = looseDir;
+        this.packDir = packDir;
+    }
+
+    boolean contains(String id) {
+        if (looseFile(id).exists()) {
+            return true;
+        }
+        for (Pack pack : getPacks()) {
+            if (pack.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Where the stored bytes of an object are: LENGTH bytes at OFFSET in
+     * FILE, a loose object file or a pack.
+     */
+    static class Location {
+        final File file;
+        final long offset;
+        final long length;
+
+        Location(File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /** Returns the first N stored bytes, or all of them if fewer. */
+        byte[] head(int n) {
+            byte[] res = new byte[(int) Math.min(n, length)];
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                in.seek(offset);
+                in.readFully(res);
+            } catch (IOException excp) {
+                throw error("cannot read %s: %s", file, excp.getMessage());
+            }
+            return res;
+        }
+    }
+
+    /** Returns where the stored bytes of object ID are, so they can be
+     *  copied without reading them, or null if there is no such object. */
+    Location locate(String id) {
+        File file = looseFile(id);
+        if (file.exists()) {
+            return new Location(file, 0, file.length());
+        }
+        for (Pack pack : getPacks()) {
+            Location res = pack.locate(id);
+            if (res != null) {
+                return res;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the stored bytes of object ID, or null if there is none. */
+    byte[] read(String id) {
+        File file = looseFile(id);
+        if (file.exists()) {
+            return readContents(file);
+        }
+        for (Pack pack : getPacks()) {
+            byte[] res = pack.read(id);
+            if (res != null) {
+                return res;
+            }
+        }
+        return null;
+    }
+
+    /** Writes CONTENT as loose object ID. */
+    void write(String id, byte[] content) {
+        File tmp = newTempFile();
+        writeContents(tmp, content);
+        install(tmp, id);
+    }
+
+    /** Returns a new empty file in the loose directory, to be installed
+     *  as an object once its id is known. */
+    File newTempFile() {
+        try {
+            looseDir.mkdirs();
+            return File.createTempFile(TEMP_PREFIX, null, looseDir);
+        } catch (IOException excp) {
+            throw error("cannot create temporary object: %s", excp.getMessage());
+        }
+    }
+
+    /** Renames the complete temporary file TMP to loose object ID, or
+     *  deletes it if object ID is already stored. */
+    void install(File tmp, String id) {
+        if (contains(id)) {
+            tmp.delete();
+            return;
+        }
+        try {
+            File file = looseFile(id);
+            file.getParentFile().mkdirs();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw error("cannot store object %s: %s", id, excp.getMessage());
+        }
+    }
+
+    /** Returns the ids of all objects, loose and packed, in sorted order. */
+    List<String> ids() {
+        TreeSet<String> res = new TreeSet<>(looseIds());
+        for (Pack pack : getPacks()) {
+            res.addAll(pack.ids());
+        }
+        return new ArrayList<>(res);
+    }
+
+    /**
+     * Moves every loose object into one new pack.  Loose files are only
+     * deleted after the pack and its index are complete.
+     */
+    void pack() {
+        List<String> loose = looseIds();
+        if (loose.isEmpty()) {
+            return;
+        }
+        Pack pack = Pack.write(packDir, loose, id -> {
+            File file = looseFile(id);
+            return new Location(file, 0, file.length());
+        });
+        getPacks().add(0, pack);
+        for (String id : loose) {
+            File file = looseFile(id);
+            file.delete();
+            file.getParentFile().delete();   // only succeeds once empty
+        }
+    }
+
+    private List<String> looseIds() {
+        migrate();
+        List<String> res = new ArrayList<>();
+        File[] dirs = looseDir.listFiles(file -> file.isDirectory() && file.getName().length() == 2);
+        if (dirs == null) {
+            return res;
+        }
+        for (File dir : dirs) {
+            String[] names = dir.list();
+            if (names == null) {
+                continue;
+            }
+            for (String name : names) {
+                res.add(dir.getName() + name);
+            }
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    private File looseFile(String id) {
+        migrate();
+        return join(looseDir, id.substring(0, 2), id.substring(2));
+    }
+
+    /** Moves loose objects written flat into LOOSE_DIR by older versions
+     *  into their subdirectories.  Afterwards LOOSE_DIR only holds the
+     *  subdirectories and temporary files, so this check stays cheap. */
+    private synchronized void migrate() {
+        if (migrated) {
+            return;
+        }
+        migrated = true;
+        File[] files = looseDir.listFiles(file -> file.isFile() && file.getName().length() == UID_LENGTH);
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            install(file, file.getName());
+        }
+    }
+
+    /** Newest packs first, so recently packed objects are found quickly. */
+    private synchronized List<Pack> getPacks() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            File[] files = packDir.listFiles((dir, name) -> name.endsWith(Pack.IDX_SUFFIX));
+            if (files != null) {
+                Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+                for (File file : files) {
+                    packs.add(new Pack(file));
+                }
+            }
+        }
+        return packs;
+    }
+}
@@ -0,0 +1,286 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/**
+ * An append-only pack of objects together with its sorted index.
+ * <p>
+ * pack-[id].pack
+ * -- "GPCK" [version] [count]
+ * -- [object bytes] [object bytes] ...
+ * <p>
+ * pack-[id].idx
+ * -- "GIDX" [version] [count]
+ * -- fanout: 256 ints, fanout[b] = number of ids whose first byte is <= b
+ * -- entries sorted by id: [20-byte id] [8-byte offset] [8-byte length]
+ * <p>
+ * Version 1 indexes, with 4-byte lengths, are still read.  A new pack
+ * is filled by copying each object file to file, never through the
+ * heap, so packing takes constant memory whatever the object sizes.
+ * <p>
+ * The index is memory-mapped, so a lookup is a fanout read plus a binary
+ * search over one fanout bucket; the pack itself is mapped on first read.
+ * Packs are never modified once written.
+ */
+class Pack {
+    private static final int PACK_MAGIC = 0x4750434b;   // "GPCK"
+    private static final int IDX_MAGIC = 0x47494458;    // "GIDX"
+    private static final int PACK_VERSION = 1;
+    private static final int IDX_VERSION = 2;
+
+    static final String PACK_SUFFIX = ".pack";
+    static final String IDX_SUFFIX = ".idx";
+
+    private static final int HEADER_SIZE = 12;
+    private static final int FANOUT_SIZE = 256 * 4;
+    private static final int ID_SIZE = 20;
+
+    private final File packFile;
+    private final MappedByteBuffer idx;
+    private final int count;
+    /** Size of an index entry: version 1 entries have 4-byte lengths. */
+    private final int entrySize;
+    private MappedByteBuffer data;
+
+    /** Opens the pack whose index is IDXFILE. */
+    Pack(File idxFile) {
+        String name = idxFile.getName();
+        String base = name.substring(0, name.length() - IDX_SUFFIX.length());
+        this.packFile = join(idxFile.getParentFile(), base + PACK_SUFFIX);
+        this.idx = map(idxFile, 0, idxFile.length());
+        int version = idx.getInt(4);
+        if (idx.getInt(0) != IDX_MAGIC || (version != 1 && version != IDX_VERSION)) {
+            throw error("bad pack index: %s", idxFile);
+        }
+        this.count = idx.getInt(8);
+        this.entrySize = ID_SIZE + 8 + (version == 1 ? 4 : 8);
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean contains(String id) {
+        return find(id) >= 0;
+    }
+
+    /** Returns where in the pack file object ID is, or null if it is not
+     *  in this pack. */
+    ObjectStore.Location locate(String id) {
+        int i = find(id);
+        if (i < 0) {
+            return null;
+        }
+        return new ObjectStore.Location(packFile, entryOffset(i), entryLength(i));
+    }
+
+    /** Returns the bytes of object ID, or null if it is not in this pack. */
+    byte[] read(String id) {
+        int i = find(id);
+        if (i < 0) {
+            return null;
+        }
+        long offset = entryOffset(i);
+        long length = entryLength(i);
+        if (length > Integer.MAX_VALUE - 8) {
+            throw error("object %s is too large to read whole", id);
+        }
+        byte[] res = new byte[(int) length];
+        if (packFile.length() <= Integer.MAX_VALUE) {
+            ByteBuffer view = data().duplicate();
+            view.position((int) offset);
+            view.get(res);
+        } else {
+            map(packFile, offset, length).get(res);
+        }
+        return res;
+    }
+
+    /** Returns the pack file mapped whole, mapping it on first use. */
+    private synchronized MappedByteBuffer data() {
+        if (data == null) {
+            data = map(packFile, 0, packFile.length());
+        }
+        return data;
+    }
+
+    /** Returns the ids of all objects in this pack, in sorted order. */
+    List<String> ids() {
+        List<String> res = new ArrayList<>(count);
+        byte[] raw = new byte[ID_SIZE];
+        for (int i = 0; i < count; i++) {
+            ByteBuffer view = idx.duplicate();
+            view.position(entryPosition(i));
+            view.get(raw);
+            res.add(bytesToHex(raw));
+        }
+        return res;
+    }
+
+    /** Returns the entry number of object ID, or -1 if it is not in this
+     *  pack; an id that is not 40 hexadecimal digits is in no pack. */
+    private int find(String id) {
+        if (id.length() != 2 * ID_SIZE) {
+            return -1;
+        }
+        try {
+            return find(hexToBytes(id));
+        } catch (NumberFormatException excp) {
+            return -1;
+        }
+    }
+
+    /** Binary search for RAW in its fanout bucket; returns its entry
+     *  number or -1. */
+    private int find(byte[] raw) {
+        int first = raw[0] & 0xff;
+        int lo = first == 0 ? 0 : idx.getInt(HEADER_SIZE + (first - 1) * 4);
+        int hi = idx.getInt(HEADER_SIZE + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareId(entryPosition(mid), raw);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareId(int pos, byte[] raw) {
+        for (int k = 0; k < ID_SIZE; k++) {
+            int a = idx.get(pos + k) & 0xff;
+            int b = raw[k] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    private int entryPosition(int i) {
+        return HEADER_SIZE + FANOUT_SIZE + i * entrySize;
+    }
+
+    private long entryOffset(int i) {
+        return idx.getLong(entryPosition(i) + ID_SIZE);
+    }
+
+    private long entryLength(int i) {
+        int pos = entryPosition(i) + ID_SIZE + 8;
+        return entrySize == ID_SIZE + 8 + 4 ? idx.getInt(pos) : idx.getLong(pos);
+    }
+
+    private static MappedByteBuffer map(File file, long offset, long length) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } catch (IOException excp) {
+            throw error("cannot map %s: %s", file, excp.getMessage());
+        }
+    }
+
+    /**
+     * Source of the objects written into a new pack.
+     */
+    interface Source {
+        /** Returns where the stored bytes of object ID are. */
+        ObjectStore.Location locate(String id);
+    }
+
+    /**
+     * Writes the objects IDS (sorted, no duplicates), copied from where
+     * SOURCE locates them, into a new pack in DIR and returns it.  The pack is written first and its
+     * index last, each through a temporary file, so a crash never leaves an
+     * index pointing at a partial pack.
+     */
+    static Pack write(File dir, List<String> ids, Source source) {
+        dir.mkdirs();
+        String name = "pack-" + sha1(String.join("", ids));
+        File packFile = join(dir, name + PACK_SUFFIX);
+        File idxFile = join(dir, name + IDX_SUFFIX);
+        if (idxFile.exists()) {
+            return new Pack(idxFile);
+        }
+
+        long[] offsets = new long[ids.size()];
+        long[] lengths = new long[ids.size()];
+        int[] fanout = new int[256];
+        try {
+            File tmp = File.createTempFile("pack", ".tmp", dir);
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(PACK_MAGIC).putInt(PACK_VERSION).putInt(ids.size()).flip();
+                while (header.hasRemaining()) {
+                    out.write(header);
+                }
+                long offset = HEADER_SIZE;
+                for (int i = 0; i < ids.size(); i++) {
+                    ObjectStore.Location stored = source.locate(ids.get(i));
+                    copy(stored, out);
+                    offsets[i] = offset;
+                    lengths[i] = stored.length;
+                    offset += stored.length;
+                }
+            }
+            Files.move(tmp.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            tmp = File.createTempFile("idx", ".tmp", dir);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+                out.writeInt(IDX_MAGIC);
+                out.writeInt(IDX_VERSION);
+                out.writeInt(ids.size());
+                for (String id : ids) {
+                    fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+                }
+                int total = 0;
+                for (int b = 0; b < 256; b++) {
+                    total += fanout[b];
+                    out.writeInt(total);
+                }
+                for (int i = 0; i < ids.size(); i++) {
+                    out.write(hexToBytes(ids.get(i)));
+                    out.writeLong(offsets[i]);
+                    out.writeLong(lengths[i]);
+                }
+            }
+            Files.move(tmp.toPath(), idxFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw error("cannot write pack: %s", excp.getMessage());
+        }
+        return new Pack(idxFile);
+    }
+
+    /** Appends the stored bytes at STORED to OUT, file to file. */
+    private static void copy(ObjectStore.Location stored, FileChannel out) throws IOException {
+        try (FileChannel in = FileChannel.open(stored.file.toPath(), StandardOpenOption.READ)) {
+            long position = stored.offset;
+            long end = stored.offset + stored.length;
+            while (position < end) {
+                long n = in.transferTo(position, end - position, out);
+                if (n <= 0) {
+                    throw new IOException("truncated object " + stored.file);
+                }
+                position += n;
+            }
+        }
+    }
+}
@@ -1,12 +1,10 @@
 package gitlet;
 
 import java.io.*;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 
 import static gitlet.Utils.*;
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
 /**
  * Represents a gitlet repository.
@@ -27,6 +25,17 @@ public class Repository {
      */
     public File CWD;
 
+    /**
+     * Store new blob versions as deltas against the version in HEAD,
+     * set with -Dgitlet.delta=true.
+     */
+    private static final boolean DELTA_MODE = Boolean.getBoolean("gitlet.delta");
+
+    /**
+     * Largest file that is read into memory to be delta-encoded.
+     */
+    private static final long DELTA_SIZE_LIMIT = 16 * 1024 * 1024;
+
     public Repository() {
         this.CWD = new File(System.getProperty("user.dir"));
         configDIRS();
@@ -41,23 +50,46 @@ public class Repository {
         this.GITLET_DIR = join(CWD, ".gitlet");
         this.STAGING_DIR = join(GITLET_DIR, "staging");
         this.STAGE = join(GITLET_DIR, "stage");
+        this.STAGE_JOURNAL = join(GITLET_DIR, "stage-journal");
+        this.INDEX = join(GITLET_DIR, "index");
+        this.COMMIT_GRAPH = join(GITLET_DIR, "commit-graph");
+        this.COMMIT_IDS = join(GITLET_DIR, "commit-ids");
+        this.COMMIT_JOURNAL = join(GITLET_DIR, "commit-journal");
+        this.MESSAGE_INDEX = join(GITLET_DIR, "message-index");
+        this.MESSAGE_LOG = join(GITLET_DIR, "message-log");
         this.BLOBS_DIR = join(GITLET_DIR, "blobs");
+        this.TREES_DIR = join(GITLET_DIR, "trees");
         this.COMMITS_DIR = join(GITLET_DIR, "commits");
+        this.PACKS_DIR = join(GITLET_DIR, "packs");
         this.REFS_DIR = join(GITLET_DIR, "refs");
         this.HEADS_DIR = join(REFS_DIR, "heads");
         this.REMOTES_DIR = join(REFS_DIR, "remotes");
         this.HEAD = join(GITLET_DIR, "HEAD");
         this.CONFIG = join(GITLET_DIR, "config");
+        this.commitStore = new ObjectStore(COMMITS_DIR, join(PACKS_DIR, "commits"));
+        this.blobStore = new ObjectStore(BLOBS_DIR, join(PACKS_DIR, "blobs"));
+        this.treeStore = new ObjectStore(TREES_DIR, join(PACKS_DIR, "trees"));
     }
 
     /**
      * The .gitlet directory.
      * <p>
      * .gitlet
-     * -- staging
      * -- [stage]
-     * -- blobs
-     * -- commits
+     * -- [stage-journal]
+     * -- [index]
+     * -- [commit-graph]
+     * -- [commit-ids]
+     * -- [commit-journal]
+     * -- [message-index]
+     * -- [message-log]
+     * -- blobs -> [xx] -> [rest of blob id]
+     * -- trees -> [xx] -> [rest of tree id]
+     * -- commits -> [xx] -> [rest of commit id]
+     * -- packs
+     *  -- commits -> [pack-id.pack][pack-id.idx]
+     *  -- blobs -> [pack-id.pack][pack-id.idx]
+     *  -- trees -> [pack-id.pack][pack-id.idx]
      * -- refs
      *  -- heads -> [master][branch name]
      *  -- remotes
@@ -68,7 +100,8 @@ public class Repository {
     public File GITLET_DIR;
 
     /**
-     * The staging directory, restores staging Blobs
+     * The staging directory, restored staging Blobs in older repositories;
+     * add now writes blobs straight into the blob store
      */
     public File STAGING_DIR;
 
@@ -77,12 +110,78 @@ public class Repository {
      */
     public File STAGE;
 
+    /**
+     * Changes to the stage since its snapshot, see Stage
+     */
+    public File STAGE_JOURNAL;
+
+    /**
+     * The stat cache of working files, see StatCache
+     */
+    public File INDEX;
+    private StatCache statCache;
+
+    /**
+     * Ancestry of all commits, see CommitGraph
+     */
+    public File COMMIT_GRAPH;
+    private CommitGraph commitGraph;
+
+    /**
+     * Sorted commit ids for resolving short ids, see IdIndex
+     */
+    public File COMMIT_IDS;
+    private IdIndex commitIds;
+
+    /**
+     * Headers of all commits, for global-log, see CommitJournal
+     */
+    public File COMMIT_JOURNAL;
+    private CommitJournal commitJournal;
+
+    /**
+     * Commit messages and their trigrams, for find, see MessageIndex
+     */
+    public File MESSAGE_INDEX;
+    public File MESSAGE_LOG;
+    private MessageIndex messageIndex;
+
     /**
      * The Objects directory, stores committed blobs & commits
      */
     public File BLOBS_DIR;
+    public File TREES_DIR;
     public File COMMITS_DIR;
 
+    /**
+     * The packs directory, stores packed blobs & commits
+     */
+    public File PACKS_DIR;
+
+    /**
+     * Loose and packed objects, looked up by id
+     */
+    private ObjectStore commitStore;
+    private ObjectStore blobStore;
+    private ObjectStore treeStore;
+
+    /**
+     * Tracked files of recently flattened trees, by tree id
+     */
+    private final Map<String, Map<String, String>> trackedFiles =
+        new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest) {
+                return size() > TRACKED_FILES_CACHE_SIZE;
+            }
+        };
+    private static final int TRACKED_FILES_CACHE_SIZE = 8;
+
+    /**
+     * Recently decoded commits, see CommitCache
+     */
+    private final CommitCache commitCache = new CommitCache();
+
     /**
      * The branches directory
      */
@@ -106,15 +205,17 @@ public class Repository {
 
         // create directories
         GITLET_DIR.mkdir();
-        STAGING_DIR.mkdir();
-        writeObject(STAGE, new Stage());
+        writeStage(new Stage());
         BLOBS_DIR.mkdir();
+        TREES_DIR.mkdir();
         COMMITS_DIR.mkdir();
+        PACKS_DIR.mkdir();
         REFS_DIR.mkdir();
         HEADS_DIR.mkdir();
         REMOTES_DIR.mkdir();
 
         // initial commit
+        writeTree(new Tree());
         Commit initialCommit = new Commit();
         writeCommitToFile(initialCommit);
         String id = initialCommit.getID();
@@ -132,61 +233,95 @@ public class Repository {
     }
 
     /**
+     * java gitlet.Main add [file or directory]...
+     * Stages every named file and every file under every named directory
+     * ("." is the whole working tree):
      * 1. Staging an already-staged file overwrites the previous entry in the staging area with the new contents.
      * 2. If the current working version of the file is identical to the version in the current commit,
      * do not stage it to be added, and remove it from the staging area if it is already there
      * (as can happen when a file is changed, added, and then changed back to it’s original version).
      * 3. The file will no longer be staged for removal (see gitlet rm), if it was at the time of the command.
+     * The files are hashed and stored in parallel, and the stage is read and written once.
      *
-     * @param filename
+     * @param names
      */
-    public void add(String filename) {
-        File file = join(CWD, filename);
-        if (!file.exists()) {
-            System.out.println("File does not exist.");
-            System.exit(0);
+    public void add(String... names) {
+        WorkingTreeScanner scanner = new WorkingTreeScanner(CWD, getStatCache());
+        TreeSet<String> paths = new TreeSet<>();
+        for (String name : names) {
+            String path = toTrackedPath(name);
+            File file = path == null ? null : join(CWD, path);
+            if (file != null && file.isFile()) {
+                paths.add(path);
+            } else if (file != null && file.isDirectory()) {
+                paths.addAll(scanner.listFiles(path));
+            } else {
+                System.out.println("File does not exist.");
+                System.exit(0);
+            }
         }
 
         Commit head = getHead();
+        Map<String, String> headFiles = getTrackedFiles(head);
         Stage stage = readStage();
-        // blob id
-        String headId = head.getBlobs().getOrDefault(filename, "");
-        String stageId = stage.getAdded().getOrDefault(filename, "");
-
-        Blob blob = new Blob(filename, CWD);
-        String blobId = blob.getId();
-
-        if (blobId.equals(headId)) {
-            // no need to add the file
-            if (!blobId.equals(stageId)) {
-                // del the file from staging
-                join(STAGING_DIR, stageId).delete();
-                stage.getAdded().remove(stageId);
-                stage.getRemoved().remove(filename);
-                writeStage(stage);
-            }
-        } else if (!blobId.equals(stageId)) {
-            // update staging
-            // del original, add the new version
-            if (!stageId.equals("")) {
-                join(STAGING_DIR, stageId).delete();
+        Map<String, String> blobIds = scanner.applyAll(new ArrayList<>(paths), parallelism(),
+                path -> stageBlob(path, headFiles.getOrDefault(path, "")));
+
+        boolean changed = false;
+        for (String filename : paths) {
+            // blob id
+            String blobId = blobIds.get(filename);
+            String headId = headFiles.getOrDefault(filename, "");
+            String stageId = stage.getAdded().getOrDefault(filename, "");
+            if (holdsContent(headId, blobId)) {
+                // no need to add the file
+                if (!stageId.equals("") || stage.getRemoved().contains(filename)) {
+                    // del the file from staging
+                    stage.unstage(filename);
+                    changed = true;
+                }
+            } else if (!holdsContent(stageId, blobId)) {
+                // update staging
+                // change stage added files
+                stage.addFile(filename, blobId);
+                changed = true;
             }
-
-            writeObject(join(STAGING_DIR, blobId), blob);
-            // change stage added files
-            stage.addFile(filename, blobId);
+        }
+        if (changed) {
             writeStage(stage);
         }
     }
 
+    /**
+     * Returns the blob id of working file FILENAME, storing the blob unless
+     * its stat data is unchanged and the blob is stored already; BASEID is
+     * the version delta mode may encode it against.  Safe to call from
+     * several threads at once.
+     */
+    private String stageBlob(String filename, String baseId) {
+        File file = join(CWD, filename);
+        StatCache.Entry stat = StatCache.stat(file);
+        String blobId = getStatCache().lookup(filename, stat);
+        if (blobId == null || !blobStore.contains(blobId)) {
+            blobId = storeBlob(file, baseId);
+            getStatCache().put(filename, stat, blobId);
+        }
+        return blobId;
+    }
+
     public void rm(String filename) {
+        filename = toTrackedPath(filename);
+        if (filename == null) {
+            System.out.println("No reason to remove the file.");
+            System.exit(0);
+        }
         File file = join(CWD, filename);
 
         Commit head = getHead();
         Stage stage = readStage();
 
         // blob id
-        String headId = head.getBlobs().getOrDefault(filename, "");
+        String headId = getTrackedFiles(head).getOrDefault(filename, "");
         String stageId = stage.getAdded().getOrDefault(filename, "");
 
         if (headId.equals("") && stageId.equals("")) {
@@ -197,20 +332,18 @@ public class Repository {
 
         // Unstage the file if it is currently staged for addition.
         if (!stageId.equals("")) {
-            stage.getAdded().remove(filename);
+            stage.unstage(filename);
         } else {
             // stage it for removal
-            stage.getRemoved().add(filename);
+            stage.removeFile(filename);
         }
 
-        Blob blob = new Blob(filename, CWD);
-        String blobId = blob.getId();
         // If the file is tracked in the current commit
         // the same content? or just filename?
-        if (blob.exists() && blobId.equals(headId)) {
+        if (file.exists() && holdsContent(headId, getWorkingFileId(filename))) {
             // remove the file from the working directory
             // if the user has not already done so
-            restrictedDelete(file);
+            deleteWorkingFile(filename);
         }
 
         writeStage(stage);
@@ -232,33 +365,26 @@ public class Repository {
 
     public void log() {
         StringBuffer sb = new StringBuffer();
-        Commit commit = getHead();
-        while (commit != null) {
-            sb.append(commit.getCommitAsString());
-            commit = getCommitFromId(commit.getFirstParentId());
+        CommitGraph graph = getCommitGraph();
+        // walk the first parents in the graph, only loading commits to print them
+        for (int pos = graphPosition(getHeadCommitId()); pos >= 0; pos = graph.firstParent(pos)) {
+            sb.append(getCommitFromId(graph.idAt(pos)).getCommitAsString());
         }
 
         System.out.print(sb);
     }
 
     public void global_log() {
-        StringBuffer sb = new StringBuffer();
-        List<String> filenames = plainFilenamesIn(COMMITS_DIR);
-        for (String filename : filenames) {
-            Commit commit = getCommitFromId(filename);
-            sb.append(commit.getCommitAsString());
-        }
-        System.out.println(sb);
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16));
+        getCheckedCommitJournal().print(out);
+        out.println();
+        out.flush();
     }
 
     public void find(String target) {
         StringBuffer sb = new StringBuffer();
-        List<String> filenames = plainFilenamesIn(COMMITS_DIR);
-        for (String filename : filenames) {
-            Commit commit = getCommitFromId(filename);
-            if (commit.getMessage().contains(target)) {
-                sb.append(commit.getID() + "\n");
-            }
+        for (String commitId : getCheckedMessageIndex().find(target)) {
+            sb.append(commitId + "\n");
         }
         if (sb.length() == 0) {
             System.out.println("Found no commit with that message.");
@@ -282,69 +408,106 @@ public class Repository {
         }
         sb.append("\n");
 
+        Commit head = getHead();
         Stage stage = readStage();
         sb.append("=== Staged Files ===\n");
-        for (String filename : stage.getAdded().keySet()) {
+        for (String filename : new TreeSet<>(stage.getAdded().keySet())) {
             sb.append(filename + "\n");
         }
         sb.append("\n");
 
         sb.append("=== Removed Files ===\n");
-        for (String filename : stage.getRemoved()) {
+        for (String filename : new TreeSet<>(stage.getRemoved())) {
             sb.append(filename + "\n");
         }
         sb.append("\n");
 
         sb.append("=== Modifications Not Staged For Commit ===\n");
-        // List<String> modifiedFiles = getModifiedFiles(getCommitFromBranchName(headBranch), stage);
-        // for (String str : modifiedFiles) {
-        //     sb.append(str + "\n");
-        // }
+        List<String> modifiedFiles = getModifiedFiles(head, stage);
+        for (String str : modifiedFiles) {
+            sb.append(str + "\n");
+        }
         sb.append("\n");
 
         sb.append("=== Untracked Files ===\n");
-        // List<String> untrackedFiles = getUntrackedFiles();
-        // for (String filename : untrackedFiles) {
-        //     sb.append(filename + "\n");
-        // }
+        List<String> untrackedFiles = getUntrackedFiles(head, stage);
+        for (String filename : untrackedFiles) {
+            sb.append(filename + "\n");
+        }
         sb.append("\n");
 
         System.out.println(sb);
     }
 
+    /**
+     * Tracked in the current commit, changed in the working directory, but not staged;
+     * staged for addition, but with different contents than in the working directory;
+     * staged for addition, but deleted in the working directory;
+     * not staged for removal, but tracked in the current commit and deleted from the working directory.
+     */
     private List<String> getModifiedFiles(Commit head, Stage stage) {
-        List<String> res = new LinkedList<>();
-
-        List<String> currentFiles = plainFilenamesIn(CWD);
-        Set<String> headFiles = head.getBlobs().keySet();
-        List<String> stagedFiles = stage.getStagedFilename();
-
-        Set<String> allFiles = new HashSet<>();
-        allFiles.addAll(currentFiles);
-        allFiles.addAll(headFiles);
-        allFiles.addAll(stagedFiles);
-
-        for (String filename : allFiles) {
-            if (!currentFiles.contains(filename)) {
-                if (stage.getAdded().containsKey(filename) ||
-                   (headFiles.contains(filename) && !stagedFiles.contains(filename))) {
-                    res.add(filename + " (deleted)");
-                }
-            } else {
-                String bId = new Blob(filename, CWD).getId();
-                String sId = stage.getAdded().getOrDefault(filename, "");
-                String hId = head.getBlobs().getOrDefault(filename, "");
-                if ((hId != "" && hId != bId && sId == "") ||
-                    (sId != "" && sId != bId)){
-                    res.add(filename + " (modified)");
-                }
+        List<String> res = new ArrayList<>();
+
+        Map<String, String> headFiles = getTrackedFiles(head);
+        Map<String, String> added = stage.getAdded();
+        Set<String> removed = stage.getRemoved();
+
+        // only tracked or staged files can be modified, so only they are hashed
+        Set<String> paths = new HashSet<>(headFiles.keySet());
+        paths.addAll(added.keySet());
+        List<String> candidates = new ArrayList<>(paths);
+        Map<String, String> working = new WorkingTreeScanner(CWD, getStatCache())
+                .hashAll(candidates, parallelism());
+
+        for (Map.Entry<String, String> item : headFiles.entrySet()) {
+            String filename = item.getKey();
+            if (added.containsKey(filename) || removed.contains(filename)) {
+                continue;
             }
+            addModification(res, filename, item.getValue(), working.get(filename));
+        }
+        for (Map.Entry<String, String> item : added.entrySet()) {
+            String filename = item.getKey();
+            addModification(res, filename, item.getValue(), working.get(filename));
         }
 
         Collections.sort(res);
         return res;
     }
 
+    private void addModification(List<String> res, String filename, String expectedId, String workingId) {
+        if (workingId == null) {
+            res.add(filename + " (deleted)");
+        } else if (!holdsContent(expectedId, workingId)) {
+            res.add(filename + " (modified)");
+        }
+    }
+
+    /**
+     * True if blob BLOBID ("" for none) holds the content with id
+     * CONTENTID.  Blob ids are content ids, except those of blobs written
+     * by older versions, so every comparison of a stored blob with a
+     * working file goes through here.
+     */
+    private boolean holdsContent(String blobId, String contentId) {
+        return contentId.equals(blobId) || (!blobId.isEmpty() && isLegacyCopy(blobId, contentId));
+    }
+
+    /** True if blob BLOBID was written by an older version, whose blob ids
+     *  also covered the filename, and holds the content with id CONTENTID.
+     *  Older versions kept staged blobs in the staging directory. */
+    private boolean isLegacyCopy(String blobId, String contentId) {
+        File staged = join(STAGING_DIR, blobId);
+        ObjectStore.Location stored = staged.isFile()
+                ? new ObjectStore.Location(staged, 0, staged.length()) : blobStore.locate(blobId);
+        // only a legacy blob is decoded: the header says which it is
+        if (stored == null || !isSerialized(stored.head(2))) {
+            return false;
+        }
+        byte[] legacy = staged.isFile() ? readContents(staged) : blobStore.read(blobId);
+        return sha1(Blob.decode(legacy, null)).equals(contentId);
+    }
+
     /**
      * java gitlet.Main checkout -- [file name]
      */
@@ -360,49 +523,123 @@ public class Repository {
      */
     public void checkoutFileFromCommitId(String commitId, String filename) {
         commitId = getCompleteCommitId(commitId);
-        File commitFile = join(COMMITS_DIR, commitId);
-        if (!commitFile.exists()) {
+        Commit commit = getCommitFromId(commitId);
+        if (commit == null) {
             System.out.println("No commit with that id exists.");
             System.exit(0);
         }
-        Commit commit = readObject(commitFile, Commit.class);
         checkoutFileFromCommit(commit, filename);
     }
 
     /**
      * short id
-     * starts with the same six digits
+     * starts with the same six digits; resolved through the commit id
+     * index, or null if no commit matches
      */
     private String getCompleteCommitId(String commitId) {
         if (commitId.length() == UID_LENGTH) {
             return commitId;
         }
 
-        for (String filename : COMMITS_DIR.list()) {
-            if (filename.startsWith(commitId)) {
-                return filename;
+        List<String> matches = getCommitIds().resolve(commitId, 2);
+        if (matches.isEmpty() && isCommitIdsStale()) {
+            // commits stored without the index (by older versions, or
+            // before a crash) are only found after rebuilding it
+            List<String> ids = commitStore.ids();
+            for (String id : ids) {
+                graphPosition(id);
+            }
+            getCommitGraph().write();
+            commitIds = IdIndex.build(COMMIT_IDS, ids);
+            matches = commitIds.resolve(commitId, 2);
+        }
+        if (matches.size() > 1) {
+            System.out.println("Ambiguous commit id.");
+            System.exit(0);
+        }
+        return matches.isEmpty() ? null : matches.get(0);
+    }
+
+    /**
+     * Returns true if the commit id index may lack commits: it holds fewer
+     * ids than the commit graph has records, or lacks HEAD, whose command
+     * may have crashed before flush().  Neither check reads the history,
+     * so a prefix that matches nothing is rejected in constant time.
+     */
+    private boolean isCommitIdsStale() {
+        int graphSize = commitGraph != null ? commitGraph.size() : CommitGraph.recordCount(COMMIT_GRAPH);
+        return getCommitIds().size() != graphSize
+                || getCommitIds().resolve(getHeadCommitId(), 1).isEmpty();
+    }
+
+    private IdIndex getCommitIds() {
+        if (commitIds == null) {
+            commitIds = IdIndex.read(COMMIT_IDS);
+            if (commitIds == null) {
+                commitIds = IdIndex.build(COMMIT_IDS, commitStore.ids());
             }
         }
-        return null;
+        return commitIds;
     }
 
     private void checkoutFileFromCommit(Commit commit, String filename) {
-        String blobId = commit.getBlobs().getOrDefault(filename, "");
-        checkoutFileFromBlobId(blobId);
+        filename = toTrackedPath(filename);
+        String blobId = filename == null ? "" : getTrackedFiles(commit).getOrDefault(filename, "");
+        checkoutFileFromBlobId(filename, blobId);
     }
 
-    private void checkoutFileFromBlobId(String blobId) {
+    private void checkoutFileFromBlobId(String filename, String blobId) {
         if (blobId.equals("")) {
             System.out.println("File does not exist in that commit.");
             System.exit(0);
         }
-        Blob blob = getBlobFromId(blobId);
-        checkoutFileFromBlob(blob);
+        File file = join(CWD, filename);
+        file.getParentFile().mkdirs();
+        writeBlob(blobId, file);
+        getStatCache().put(filename, StatCache.stat(file), blobId);
+    }
+
+    /**
+     * Returns FILENAME as a path relative to the working directory, with
+     * '/' between directories, as commits track it; "" for the working
+     * directory itself, and null if it is not a path inside the working
+     * directory or is inside .gitlet.
+     */
+    private String toTrackedPath(String filename) {
+        Path cwd = CWD.toPath().toAbsolutePath().normalize();
+        Path path = cwd.resolve(filename).normalize();
+        if (!path.startsWith(cwd)) {
+            return null;
+        }
+        if (path.equals(cwd)) {
+            return "";
+        }
+        Path relative = cwd.relativize(path);
+        if (relative.getName(0).toString().equals(".gitlet")) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Path name : relative) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(name);
+        }
+        return sb.toString();
     }
 
-    private void checkoutFileFromBlob(Blob blob) {
-        File file = join(CWD, blob.getFilename());
-        writeContents(file, blob.getContent());
+    /**
+     * Deletes working file FILENAME, then any directories above it that
+     * this leaves empty, up to the working directory.
+     */
+    private void deleteWorkingFile(String filename) {
+        File file = join(CWD, filename);
+        file.delete();
+        getStatCache().remove(filename);
+        File dir = file.getParentFile();
+        while (!dir.equals(CWD) && dir.delete()) {
+            dir = dir.getParentFile();
+        }
     }
 
     /**
@@ -423,12 +660,9 @@ public class Repository {
 
         Commit otherCommit = getCommitFromBranchName(branchName);
 
-        // If a working file is untracked in the current branch
-        // and would be overwritten by the checkout
-        validUntrackedFile(otherCommit.getBlobs());
-
-        clearStage(readStage());
-        replaceWorkingPlaceWithCommit(otherCommit);
+        Stage stage = readStage();
+        replaceWorkingPlaceWithCommit(otherCommit, stage);
+        clearStage(stage);
 
         // change HEAD point to this branch
         writeContents(HEAD, branchName);
@@ -498,18 +732,16 @@ public class Repository {
     }
 
     public void reset(String commitId) {
-        File file = join(COMMITS_DIR, commitId);
-        if (!file.exists()) {
+        commitId = getCompleteCommitId(commitId);
+        Commit commit = getCommitFromId(commitId);
+        if (commit == null) {
             System.out.println("No commit with that id exists.");
             System.exit(0);
         }
 
-        Commit commit = getCommitFromId(commitId);
-
-        validUntrackedFile(commit.getBlobs());
-
-        replaceWorkingPlaceWithCommit(commit);
-        clearStage(readStage());
+        Stage stage = readStage();
+        replaceWorkingPlaceWithCommit(commit, stage);
+        clearStage(stage);
 
         // moves the current branch’s head to that commit node.
         String headBranchName = getHeadBranchName();
@@ -558,11 +790,14 @@ public class Repository {
         }
 
         // 3. merge
-        mergeWithLCA(lca, head, other);
+        boolean conflicted = mergeWithLCA(lca, head, other, stage);
 
         String msg = "Merged " + otherBranchName + " into " + headBranchName + ".";
         List<Commit> parents = List.of(head, other);
-        commitWith(msg, parents);
+        commitWith(msg, parents, stage);
+        if (conflicted) {
+            System.out.println("Encountered a merge conflict.");
+        }
     }
 
 
@@ -627,13 +862,11 @@ public class Repository {
         Repository remote = new Repository(remotePath.getParent());
 
         Commit head = getHead();
-        List<String> history = getHistory(head);
         Commit remoteHead = remote.getHead();
-        if (!history.contains(remoteHead.getID())) {
+        if (!isAncestor(remoteHead.getID(), head.getID())) {
             System.out.println("Please pull down remote changes before pushing.");
             System.exit(0);
         }
-
         // If the Gitlet system on the remote machine exists
         // but does not have the input branch,
         // then simply add the branch to the remote Gitlet.
@@ -643,44 +876,67 @@ public class Repository {
         }
 
         // append the future commits to the remote branch.
-        for (String commitId : history) {
-            if (commitId.equals(remoteHead.getID())) {
-                break;
-            }
-            Commit commit = getCommitFromId(commitId);
-            File remoteCommit = join(remote.COMMITS_DIR, commitId);
-            writeObject(remoteCommit, commit);
-
-            if (!commit.getBlobs().isEmpty()) {
-                for (Map.Entry<String, String> item: commit.getBlobs().entrySet()) {
-                    String blobId = item.getValue();
-                    Blob blob = getBlobFromId(blobId);
-
-                    File remoteBlob = join(remote.BLOBS_DIR, blobId);
-                    writeObject(remoteBlob, blob);
-                }
-            }
-        }
+        copyHistory(this, remote, head.getID());
 
         // Then, the remote should reset to the front of the appended commits
         // (so its head will be the same as the local head).
+        remote.graphPosition(head.getID());
         remote.reset(head.getID());
+        remote.flush();
     }
 
-    private List<String> getHistory(Commit head) {
-        List<String> res = new LinkedList<>();
-        Queue<Commit> queue = new LinkedList<>();
-        queue.add(head);
-        while (!queue.isEmpty()) {
-            Commit commit = queue.poll();
-            if (!res.contains(commit.getID()) && !commit.getParents().isEmpty()) {
-                for (String id : commit.getParents()) {
-                    queue.add(getCommitFromId(id));
+    /**
+     * Copies commit STARTID and its ancestors from repository FROM to TO,
+     * sending only the objects TO lacks, as the walk discovers the commits.
+     * The walk stops at commits already in TO's commit graph: they are
+     * only added to it once all their ancestors are stored, so an
+     * interrupted copy is picked up again by the next one.  For each
+     * commit reached, its tree is walked, listing the trees and blobs TO
+     * does not have and that no earlier commit listed; the listed blobs
+     * are copied, then the trees (each after everything in it), then the
+     * commit.  Only ids are kept across commits, not the commits, so
+     * memory grows with the number of distinct new objects.  The counts
+     * are traced: push and fetch print nothing.
+     */
+    private static void copyHistory(Repository from, Repository to, String startId) {
+        CommitGraph graph = to.getCommitGraph();
+        Iterator<Commit> history = new HistoryIterator(startId, from::getCommitFromId,
+                id -> graph.positionOf(id) >= 0);
+        Set<String> seenTrees = new HashSet<>();
+        Set<String> seenBlobs = new HashSet<>();
+        int commitsSent = 0;
+        int treesSent = 0;
+        int blobsSent = 0;
+        int blobsWanted = 0;
+        while (history.hasNext()) {
+            Commit commit = history.next();
+            List<String> trees = new ArrayList<>();
+            List<String> blobs = new ArrayList<>();
+            if (commit.getTree() != null) {
+                wantTree(from, to, commit.getTree(), seenTrees, seenBlobs, trees, blobs);
+            } else {
+                for (String blobId : commit.getBlobs().values()) {
+                    wantBlob(to, blobId, seenBlobs, blobs);
                 }
             }
-            res.add(commit.getID());
+
+            for (String blobId : blobs) {
+                blobsSent += copyBlob(from.blobStore, to.blobStore, blobId);
+            }
+            for (String treeId : trees) {
+                to.treeStore.write(treeId, from.treeStore.read(treeId));
+            }
+            String commitId = commit.getID();
+            if (!to.commitStore.contains(commitId)) {
+                to.storeCommit(commit, from.commitStore.read(commitId));
+                commitsSent += 1;
+            }
+            treesSent += trees.size();
+            blobsWanted += blobs.size();
         }
-        return res;
+        trace("transfer: %d commits, %d trees, %d blobs sent; %d trees, %d blobs already there",
+                commitsSent, treesSent, blobsSent,
+                seenTrees.size() - treesSent, seenBlobs.size() - blobsWanted);
     }
 
     private File getRemotePath(String remoteName) {
@@ -730,27 +986,8 @@ public class Repository {
         writeContents(branch, remoteBranchCommit.getID());
 
         // fetch down all commits and blobs
-        List<String> history = remote.getHistory(remoteBranchCommit);
-
-        for (String commitId : history) {
-            Commit commit = remote.getCommitFromId(commitId);
-            File commitFile = join(COMMITS_DIR, commit.getID());
-            if (commitFile.exists()) {
-                continue;
-            }
-            writeObject(commitFile, commit);
-
-            if (commit.getBlobs().isEmpty()) {
-                continue;
-            }
-            for (Map.Entry<String, String> item: commit.getBlobs().entrySet()) {
-                String blobId = item.getValue();
-                Blob blob = remote.getBlobFromId(blobId);
-
-                File blobFile = join(BLOBS_DIR, blobId);
-                writeObject(blobFile, blob);
-            }
-        }
+        copyHistory(remote, this, remoteBranchCommit.getID());
+        graphPosition(remoteBranchCommit.getID());
     }
 
     /**
@@ -762,6 +999,16 @@ public class Repository {
         merge(remoteName + "/" + remoteBranchName);
     }
 
+    /**
+     * java gitlet.Main gc
+     * moves all loose commits and blobs into packs.
+     */
+    public void gc() {
+        commitStore.pack();
+        treeStore.pack();
+        blobStore.pack();
+    }
+
 
 
     /**
@@ -769,14 +1016,17 @@ public class Repository {
      */
 
     private void commitWith(String message, List<Commit> parents) {
-        Stage stage = readStage();
+        commitWith(message, parents, readStage());
+    }
+
+    private void commitWith(String message, List<Commit> parents, Stage stage) {
         // If no files have been staged, abort.
         if (stage.isEmpty()) {
             System.out.println("No changes added to the commit.");
             System.exit(0);
         }
 
-        Commit commit = new Commit(message, parents, stage);
+        Commit commit = new Commit(message, parents, writeCommitTree(parents.get(0), stage));
         clearStage(stage);
         writeCommitToFile(commit);
 
@@ -788,54 +1038,223 @@ public class Repository {
 
 
 
-    // The split point is a latest common ancestor of the current and given branch heads
-    private Commit getLatestCommonAncestor(Commit head, Commit other) {
-        Set<String> headAncestors = bfsFromCommit(head);
-
-        Queue<Commit> queue = new LinkedList<>();
-        queue.add(other);
-        while (!queue.isEmpty()) {
-            Commit commit = queue.poll();
-            if (headAncestors.contains(commit.getID())) {
-                return commit;
+    /**
+     * Returns the id of the tree of the first parent PARENT with the
+     * changes in STAGE applied, writing the trees that changed.
+     */
+    private String writeCommitTree(Commit parent, Stage stage) {
+        SortedMap<String, String> changes = new TreeMap<>();
+        String parentTree = parent.getTree();
+        if (parentTree == null) {
+            // a commit from before trees: every file is a change
+            changes.putAll(parent.getBlobs());
+        }
+        changes.putAll(stage.getAdded());
+        for (String filename : stage.getRemoved()) {
+            changes.put(filename, null);
+        }
+        return updateTree(parentTree, changes);
+    }
+
+    /**
+     * Returns the id of tree TREEID (null for an empty tree) with the files
+     * in CHANGES set to their blob ids, or removed where the id is null.
+     * Paths are relative to the tree, directories separated by '/'.
+     * Only the trees on changed paths are read and written; all others
+     * keep their ids.  A file may replace a directory of the same name or
+     * the other way round, so directories are updated first and a removal
+     * only drops an entry of its own kind.
+     */
+    private String updateTree(String treeId, SortedMap<String, String> changes) {
+        Tree tree = treeId == null ? new Tree() : readTree(treeId);
+        Map<String, SortedMap<String, String>> nested = new TreeMap<>();
+        Map<String, String> files = new TreeMap<>();
+        for (Map.Entry<String, String> item : changes.entrySet()) {
+            String path = item.getKey();
+            int slash = path.indexOf('/');
+            if (slash >= 0) {
+                nested.computeIfAbsent(path.substring(0, slash), k -> new TreeMap<>())
+                        .put(path.substring(slash + 1), item.getValue());
+            } else {
+                files.put(path, item.getValue());
             }
-            if (!commit.getParents().isEmpty()) {
-                for (String id : commit.getParents()) {
-                    queue.add(getCommitFromId(id));
-                }
+        }
+        for (Map.Entry<String, SortedMap<String, String>> item : nested.entrySet()) {
+            String name = item.getKey();
+            Tree.Entry entry = tree.get(name);
+            boolean directory = entry != null && entry.isDirectory();
+            String subtree = updateTree(directory ? entry.id : null, item.getValue());
+            if (!subtree.equals(Tree.EMPTY_ID)) {
+                tree.putDirectory(name, subtree);
+            } else if (directory) {
+                tree.remove(name);
+            }
+        }
+        for (Map.Entry<String, String> item : files.entrySet()) {
+            String name = item.getKey();
+            Tree.Entry entry = tree.get(name);
+            if (item.getValue() != null) {
+                tree.putFile(name, item.getValue());
+            } else if (entry != null && !entry.isDirectory()) {
+                tree.remove(name);
             }
         }
-        return new Commit();
+        return writeTree(tree);
     }
 
-    private Set<String> bfsFromCommit(Commit head) {
-        Set<String> res = new HashSet<>();
-        Queue<Commit> queue = new LinkedList<>();
-        queue.add(head);
-        while (!queue.isEmpty()) {
-            Commit commit = queue.poll();
-            if (!res.contains(commit.getID()) && !commit.getParents().isEmpty()) {
-                for (String id : commit.getParents()) {
-                    queue.add(getCommitFromId(id));
-                }
-            }
-            res.add(commit.getID());
+    private String writeTree(Tree tree) {
+        byte[] content = tree.encode();
+        String treeId = sha1(content);
+        if (!treeStore.contains(treeId)) {
+            treeStore.write(treeId, content);
+        }
+        return treeId;
+    }
+
+    private Tree readTree(String treeId) {
+        if (treeId.equals(Tree.EMPTY_ID)) {
+            return new Tree();
+        }
+        byte[] content = treeStore.read(treeId);
+        if (content == null) {
+            throw error("missing tree %s", treeId);
+        }
+        return Tree.decode(content);
+    }
+
+    /**
+     * Returns the files COMMIT tracks, as path -> blob id, with
+     * directories separated by '/'.  Callers must not modify the map.
+     */
+    private Map<String, String> getTrackedFiles(Commit commit) {
+        String treeId = commit.getTree();
+        if (treeId == null) {
+            return commit.getBlobs();
+        }
+        Map<String, String> res = trackedFiles.get(treeId);
+        if (res == null) {
+            res = new HashMap<>();
+            addTrackedFiles(res, "", treeId);
+            trackedFiles.put(treeId, res);
         }
         return res;
     }
 
-    private void mergeWithLCA(Commit lca, Commit head, Commit other) {
-        Set<String> filenames = getAllFilenames(lca, head, other);
+    private void addTrackedFiles(Map<String, String> res, String prefix, String treeId) {
+        for (Map.Entry<String, Tree.Entry> item : readTree(treeId).getEntries().entrySet()) {
+            Tree.Entry entry = item.getValue();
+            if (entry.isDirectory()) {
+                addTrackedFiles(res, prefix + item.getKey() + "/", entry.id);
+            } else {
+                res.put(prefix + item.getKey(), entry.id);
+            }
+        }
+    }
+
+    // The split point is a latest common ancestor of the current and given branch heads
+    private Commit getLatestCommonAncestor(Commit head, Commit other) {
+        CommitGraph graph = getCommitGraph();
+        int pos = graph.mergeBase(graphPosition(head.getID()), graphPosition(other.getID()));
+        if (pos < 0) {
+            return new Commit();
+        }
+        return getCommitFromId(graph.idAt(pos));
+    }
+
+    /**
+     * Returns true if commit ANCESTORID is commit COMMITID or one of its
+     * ancestors, false also if this repository has no commit ANCESTORID.
+     */
+    private boolean isAncestor(String ancestorId, String commitId) {
+        if (!commitStore.contains(ancestorId)) {
+            return false;
+        }
+        return getCommitGraph().isAncestor(graphPosition(ancestorId), graphPosition(commitId));
+    }
 
-        List<String> remove = new LinkedList<>();
-        List<String> rewrite = new LinkedList<>();
-        List<String> conflict = new LinkedList<>();
+    private CommitGraph getCommitGraph() {
+        if (commitGraph == null) {
+            commitGraph = CommitGraph.read(COMMIT_GRAPH);
+        }
+        return commitGraph;
+    }
+
+    /**
+     * Returns the commit graph position of commit COMMITID.  Commits missing
+     * from the graph (written by older versions, copied by push, or lost
+     * in a crash) are added, parents first.
+     */
+    private int graphPosition(String commitId) {
+        CommitGraph graph = getCommitGraph();
+        int pos = graph.positionOf(commitId);
+        if (pos >= 0) {
+            return pos;
+        }
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(commitId);
+        while (!stack.isEmpty()) {
+            String id = stack.peek();
+            if (graph.positionOf(id) >= 0) {
+                stack.pop();
+                continue;
+            }
+            Commit commit = getCommitFromId(id);
+            List<String> parents = commit.getParents();
+            int[] parentPositions = new int[parents.size()];
+            boolean ready = true;
+            for (int i = 0; i < parents.size(); i++) {
+                parentPositions[i] = graph.positionOf(parents.get(i));
+                if (parentPositions[i] < 0) {
+                    stack.push(parents.get(i));
+                    ready = false;
+                }
+            }
+            if (ready) {
+                stack.pop();
+                graph.append(id, parentPositions, commit.getTimestamp().getTime());
+            }
+        }
+        return graph.positionOf(commitId);
+    }
 
-        for (String filename : filenames) {
+    /**
+     * Merges OTHER into HEAD, given their split point LCA: decides every
+     * path in one sorted pass over the three file maps, checks that no
+     * untracked file is in the way, then updates the working files and
+     * records each change in STAGE, which the caller commits.  Files
+     * changed on both sides are merged line by line.  Returns true if a
+     * file was left with conflict markers.
+     */
+    private boolean mergeWithLCA(Commit lca, Commit head, Commit other, Stage stage) {
+        Map<String, String> lcaFiles = getTrackedFiles(lca);
+        Map<String, String> headFiles = getTrackedFiles(head);
+        Map<String, String> otherFiles = getTrackedFiles(other);
+        List<String> lcaPaths = sortedPaths(lcaFiles);
+        List<String> headPaths = sortedPaths(headFiles);
+        List<String> otherPaths = sortedPaths(otherFiles);
+
+        List<String> remove = new ArrayList<>();
+        List<String> rewrite = new ArrayList<>();
+        List<String> conflict = new ArrayList<>();
+
+        int l = 0;
+        int h = 0;
+        int o = 0;
+        while (l < lcaPaths.size() || h < headPaths.size() || o < otherPaths.size()) {
+            String filename = least(least(least(null, lcaPaths, l), headPaths, h), otherPaths, o);
             // blobId
-            String lId = lca.getBlobs().getOrDefault(filename, "");
-            String hId = head.getBlobs().getOrDefault(filename, "");
-            String oId = other.getBlobs().getOrDefault(filename, "");
+            String lId = "";
+            String hId = "";
+            String oId = "";
+            if (l < lcaPaths.size() && lcaPaths.get(l).equals(filename)) {
+                lId = lcaFiles.get(lcaPaths.get(l++));
+            }
+            if (h < headPaths.size() && headPaths.get(h).equals(filename)) {
+                hId = headFiles.get(headPaths.get(h++));
+            }
+            if (o < otherPaths.size() && otherPaths.get(o).equals(filename)) {
+                oId = otherFiles.get(otherPaths.get(o++));
+            }
 
             if (hId.equals(oId) || lId.equals(oId)) {
                 continue;
@@ -843,16 +1262,8 @@ public class Repository {
             if (lId.equals(hId)) {
                 // change the file to other version
                 if (oId.equals("")) {
-                    // remove the file
-                    // rm(filename);
                     remove.add(filename);
                 } else {
-                    // rewrite working space's file with other version
-                    // checkoutFileFromBlobId(oId);
-                    // Blob blob = getBlobFromId(oId);
-                    // checkoutFileFromBlob(blob);
-                    // // add the file
-                    // add(filename);
                     rewrite.add(filename);
                 }
             } else {
@@ -861,172 +1272,348 @@ public class Repository {
             }
         }
 
-
         // If an untracked file in the current commit would be overwritten or deleted by the merge
-        List<String> untrackedFiles = getUntrackedFiles();
-        for (String filename : untrackedFiles) {
-            if (remove.contains(filename) || rewrite.contains(filename) || conflict.contains(filename)) {
-                System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
-                System.exit(0);
+        for (List<String> changed : List.of(remove, rewrite, conflict)) {
+            for (String filename : changed) {
+                if (!headFiles.containsKey(filename) && join(CWD, filename).isFile()) {
+                    System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
+                    System.exit(0);
+                }
             }
         }
 
-        if (!remove.isEmpty()) {
-            for (String filename : remove) {
-                rm(filename);
+        // A file and a directory of the same name cannot both be in the result
+        Set<String> merged = new HashSet<>(headFiles.keySet());
+        merged.removeAll(remove);
+        merged.addAll(rewrite);
+        merged.addAll(conflict);
+        for (String filename : merged) {
+            for (int slash = filename.indexOf('/'); slash >= 0; slash = filename.indexOf('/', slash + 1)) {
+                String dir = filename.substring(0, slash);
+                if (merged.contains(dir)) {
+                    System.out.println("Cannot merge: " + dir
+                            + " is a file on one branch and a directory on the other.");
+                    System.exit(0);
+                }
             }
         }
 
-        if (!rewrite.isEmpty()) {
-            for (String filename : rewrite) {
-                String oId = other.getBlobs().getOrDefault(filename, "");
-                Blob blob = getBlobFromId(oId);
-                checkoutFileFromBlob(blob);
-                // add the file
-                add(filename);
+        // as rm does, keep a removed working file with changes of its own
+        Set<String> deleted = new HashSet<>();
+        for (String filename : remove) {
+            if (join(CWD, filename).isFile() && holdsContent(headFiles.get(filename), getWorkingFileId(filename))) {
+                deleted.add(filename);
+            }
+        }
+        for (List<String> changed : List.of(rewrite, conflict)) {
+            for (String filename : changed) {
+                if (isPathBlocked(filename, deleted)) {
+                    System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
+                    System.exit(0);
+                }
             }
         }
 
-        if (!conflict.isEmpty()) {
-            for (String filename : conflict) {
-                // blobId
-                String hId = head.getBlobs().getOrDefault(filename, "");
-                String oId = other.getBlobs().getOrDefault(filename, "");
-
-                String headContent = getContentAsStringFromBlobId(hId);
-                String otherContent = getContentAsStringFromBlobId(oId);
-                String content = getConflictFile(headContent.split("\n"),
-                        otherContent.split("\n"));
-                rewriteFile(filename, content);
-                System.out.println("Encountered a merge conflict.");
+        for (String filename : remove) {
+            if (deleted.contains(filename)) {
+                deleteWorkingFile(filename);
             }
+            stage.removeFile(filename);
         }
 
-        /** TODO ? :
-         * 3. If a file was removed from both the current and given branch,
-         * but a file of the same name is present in the working directory,
-         * it is left alone and continues to be absent (not tracked nor staged) in the merge.
-         */
-    }
+        new WorkingTreeWriter(CWD, getStatCache(), this::writeBlob)
+                .writeAll(rewrite, otherFiles, parallelism());
+        for (String filename : rewrite) {
+            stage.addFile(filename, otherFiles.get(filename));
+        }
 
-    private String getContentAsStringFromBlobId(String blobId) {
-        if (blobId.equals("")) {
-            return "";
+        // files changed on both sides: merge their lines against the split point,
+        // and stage the result, conflict markers and all
+        boolean conflicted = false;
+        for (String filename : conflict) {
+            String hId = headFiles.getOrDefault(filename, "");
+            LineMerge.Result result = LineMerge.merge(getContentFromBlobId(lcaFiles.getOrDefault(filename, "")),
+                    getContentFromBlobId(hId), getContentFromBlobId(otherFiles.getOrDefault(filename, "")));
+            String blobId = sha1(result.content);
+            if (!blobStore.contains(blobId)) {
+                blobStore.write(blobId, encodeBlob(result.content, hId));
+            }
+            File file = rewriteFile(filename, result.content);
+            getStatCache().put(filename, StatCache.stat(file), blobId);
+            stage.addFile(filename, blobId);
+            conflicted |= result.conflict;
         }
-        return getBlobFromId(blobId).getContentAsString();
+        return conflicted;
     }
 
-
-    private String getConflictFile(String[] head, String[] other) {
-        StringBuffer sb = new StringBuffer();
-        int len1 = head.length, len2 = other.length;
-        int i = 0, j = 0;
-        while (i < len1 && j < len2) {
-            if (head[i].equals(other[j])) {
-                sb.append(head[i]);
-            } else {
-                sb.append(getConflictContent(head[i], other[j]));
+    /**
+     * Returns true if a working file sits where writing FILENAME needs a
+     * directory, or a directory where it needs the file, other than files
+     * in DELETED, which are deleted first.
+     */
+    private boolean isPathBlocked(String filename, Set<String> deleted) {
+        for (int slash = filename.indexOf('/'); slash >= 0; slash = filename.indexOf('/', slash + 1)) {
+            String dir = filename.substring(0, slash);
+            if (join(CWD, dir).isFile() && !deleted.contains(dir)) {
+                return true;
             }
-            i++;
-            j++;
         }
-        // head.len > other.len
-        while (i < len1) {
-            sb.append(getConflictContent(head[i], ""));
-            i++;
+        if (join(CWD, filename).isDirectory()) {
+            for (String inside : new WorkingTreeScanner(CWD, getStatCache()).listFiles(filename)) {
+                if (!deleted.contains(inside)) {
+                    return true;
+                }
+            }
         }
-        // head.len < other.len
-        while (j < len1) {
-            sb.append(getConflictContent("", other[j]));
-            j++;
+        return false;
+    }
+
+    private static List<String> sortedPaths(Map<String, String> files) {
+        List<String> res = new ArrayList<>(files.keySet());
+        Collections.sort(res);
+        return res;
+    }
+
+    /** Returns the smaller of CURRENT (null if none) and PATHS[I], if any. */
+    private static String least(String current, List<String> paths, int i) {
+        if (i >= paths.size()) {
+            return current;
         }
-        return sb.toString();
+        String path = paths.get(i);
+        return current == null || path.compareTo(current) < 0 ? path : current;
     }
 
-    private String getConflictContent(String head, String other) {
-        StringBuffer sb = new StringBuffer();
-        sb.append("<<<<<<< HEAD\n");
-        // contents of file in current branch
-        sb.append(head.equals("") ? head : head + "\n");
-        sb.append("=======\n");
-        // contents of file in given branch
-        sb.append(other.equals("") ? other : other + "\n");
-        sb.append(">>>>>>>\n");
-        return sb.toString();
+    private byte[] getContentFromBlobId(String blobId) {
+        if (blobId.equals("")) {
+            return new byte[0];
+        }
+        return readBlobContent(blobId);
     }
 
-    private void rewriteFile(String filename, String content) {
+    private File rewriteFile(String filename, byte[] content) {
         File file = join(CWD, filename);
+        file.getParentFile().mkdirs();
         writeContents(file, content);
+        return file;
     }
 
     /**
      * be sure that blob id is not "".
      */
-    private Blob getBlobFromId(String blobId) {
-        File file = join(BLOBS_DIR, blobId);
-        return readObject(file, Blob.class);
+    private byte[] readBlobContent(String blobId) {
+        return Blob.decode(blobStore.read(blobId), this::readBlobContent);
     }
 
-    private Set<String> getAllFilenames(Commit lca, Commit head, Commit other) {
-        Set<String> set = new HashSet<>();
-        set.addAll(lca.getBlobs().keySet());
-        set.addAll(head.getBlobs().keySet());
-        set.addAll(other.getBlobs().keySet());
-        return set;
+    /** Writes the content of blob BLOBID to FILE, streaming it from the
+     *  blob store where its format allows. */
+    private void writeBlob(String blobId, File file) {
+        ObjectStore.Location stored = blobStore.locate(blobId);
+        if (stored == null) {
+            throw error("missing blob %s", blobId);
+        }
+        Blob.writeTo(stored, blobId, file, this::readBlobContent);
     }
 
     /**
-     * If a working file is untracked in the current branch
-     * and would be overwritten by the blobs(checkout).
+     * Returns the blob id of working file FILENAME.  The stat cache is
+     * checked first, so only files whose stat data changed are rehashed.
      */
-    private void validUntrackedFile(Map<String, String> blobs) {
-        List<String> untrackedFiles = getUntrackedFiles();
-        if (untrackedFiles.isEmpty()) {
-            return;
+    private String getWorkingFileId(String filename) {
+        File file = join(CWD, filename);
+        StatCache.Entry stat = StatCache.stat(file);
+        String blobId = getStatCache().lookup(filename, stat);
+        if (blobId == null) {
+            blobId = Blob.hash(file);
+            getStatCache().put(filename, stat, blobId);
         }
+        return blobId;
+    }
 
-        for (String filename : untrackedFiles) {
-            String blobId = new Blob(filename, CWD).getId();
-            String otherId = blobs.getOrDefault(filename, "");
-            if (!otherId.equals(blobId)) {
-                System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
-                System.exit(0);
+    private StatCache getStatCache() {
+        if (statCache == null) {
+            statCache = StatCache.read(INDEX);
+        }
+        return statCache;
+    }
+
+    /**
+     * Writes back state kept in memory during a command: the stat cache,
+     * new commit graph records, new commit ids, headers and messages.
+     * The journal and message index go last, so after a crash they are
+     * never ahead of the commit graph they are checked against.
+     */
+    void flush() {
+        if (statCache != null) {
+            statCache.write();
+        }
+        if (commitGraph != null) {
+            commitGraph.write();
+        }
+        if (commitIds != null) {
+            commitIds.write();
+        }
+        if (commitJournal != null) {
+            commitJournal.write();
+        }
+        if (messageIndex != null) {
+            messageIndex.write();
+        }
+        trace("commit cache: %d hits, %d misses", commitCache.hits(), commitCache.misses());
+    }
+
+    /**
+     * Hashes FILE and stores it as a blob, unless the blob store already
+     * has that content; returns the blob id.  In delta mode, files up to
+     * DELTA_SIZE_LIMIT are read whole so they can become deltas against
+     * blob BASEID; all other files are streamed in one pass.
+     */
+    private String storeBlob(File file, String baseId) {
+        if (DELTA_MODE && file.length() <= DELTA_SIZE_LIMIT) {
+            byte[] content = readContents(file);
+            String blobId = sha1(content);
+            if (!blobStore.contains(blobId)) {
+                blobStore.write(blobId, encodeBlob(content, baseId));
+            }
+            return blobId;
+        }
+        return Blob.store(file, blobStore);
+    }
+
+    /**
+     * Returns the stored form of CONTENT: in delta mode, a delta against
+     * blob BASEID if that keeps the chain short and saves enough space;
+     * otherwise the full content.
+     */
+    private byte[] encodeBlob(byte[] content, String baseId) {
+        if (DELTA_MODE && !baseId.equals("")) {
+            byte[] base = blobStore.read(baseId);
+            int depth = base == null ? Blob.MAX_DELTA_DEPTH + 1 : Blob.depthOf(base) + 1;
+            if (depth <= Blob.MAX_DELTA_DEPTH) {
+                byte[] delta = Delta.create(readBlobContent(baseId), content);
+                if (delta.length < content.length / 2) {
+                    return Blob.encodeDelta(baseId, depth, delta);
+                }
             }
         }
+        return Blob.encodeFull(content);
     }
 
-    private List<String> getUntrackedFiles() {
+    /**
+     * Adds tree TREEID to TREES, after the trees and blobs in it, and
+     * those blobs to BLOBS, unless TO has them or they are in SEENTREES
+     * and SEENBLOBS already.  A tree TO has is not opened: a tree is only
+     * stored once everything in it is, so TO has all of that tree too.
+     */
+    private static void wantTree(Repository from, Repository to, String treeId,
+                                 Set<String> seenTrees, Set<String> seenBlobs,
+                                 List<String> trees, List<String> blobs) {
+        if (!seenTrees.add(treeId) || to.treeStore.contains(treeId)) {
+            return;
+        }
+        for (Tree.Entry entry : from.readTree(treeId).getEntries().values()) {
+            if (entry.isDirectory()) {
+                wantTree(from, to, entry.id, seenTrees, seenBlobs, trees, blobs);
+            } else {
+                wantBlob(to, entry.id, seenBlobs, blobs);
+            }
+        }
+        trees.add(treeId);
+    }
+
+    private static void wantBlob(Repository to, String blobId, Set<String> seenBlobs, List<String> blobs) {
+        if (seenBlobs.add(blobId) && !to.blobStore.contains(blobId)) {
+            blobs.add(blobId);
+        }
+    }
+
+    /**
+     * Copies stored blob BLOBID from FROM to TO, then any delta bases
+     * that TO does not have yet, and returns the number copied.  Blobs
+     * are named by content, so a blob TO already has is never overwritten.
+     */
+    private static int copyBlob(ObjectStore from, ObjectStore to, String blobId) {
+        int copied = 0;
+        while (blobId != null && !to.contains(blobId)) {
+            byte[] stored = from.read(blobId);
+            to.write(blobId, stored);
+            blobId = Blob.baseOf(stored);
+            copied += 1;
+        }
+        return copied;
+    }
+
+    /**
+     * Files present in the working directory but neither staged for addition nor tracked,
+     * including files staged for removal but then re-created.
+     */
+    private List<String> getUntrackedFiles(Commit head, Stage stage) {
         List<String> res = new ArrayList<>();
-        List<String> stageFiles = readStage().getStagedFilename();
-        Set<String> headFiles = getHead().getBlobs().keySet();
-        for (String filename : plainFilenamesIn(CWD)) {
-            if (!stageFiles.contains(filename) && !headFiles.contains(filename)) {
+        Map<String, String> headFiles = getTrackedFiles(head);
+        Set<String> removed = stage.getRemoved();
+        for (String filename : new WorkingTreeScanner(CWD, getStatCache()).listFiles()) {
+            boolean tracked = headFiles.containsKey(filename) && !removed.contains(filename);
+            if (!tracked && !stage.getAdded().containsKey(filename)) {
                 res.add(filename);
             }
         }
-        Collections.sort(res);
+        // listFiles is sorted already
         return res;
     }
 
-    private void replaceWorkingPlaceWithCommit(Commit commit) {
-        clearWorkingSpace();
-
-        for (Map.Entry<String, String> item : commit.getBlobs().entrySet()) {
+    /**
+     * Makes the working directory hold the files of COMMIT, with STAGE the
+     * current stage, touching only the files that differ: files tracked
+     * (at HEAD or staged for addition) but not in COMMIT are deleted, and
+     * files of COMMIT are written unless the working file already has
+     * their content.  Untracked files are left alone unless COMMIT has a
+     * different version of them, in which case nothing is changed and the
+     * command fails.  Files are written in parallel by WorkingTreeWriter.
+     */
+    private void replaceWorkingPlaceWithCommit(Commit commit, Stage stage) {
+        Map<String, String> headFiles = getTrackedFiles(getHead());
+        Map<String, String> target = getTrackedFiles(commit);
+        Set<String> tracked = new HashSet<>(headFiles.keySet());
+        tracked.removeAll(stage.getRemoved());
+        tracked.addAll(stage.getAdded().keySet());
+
+        // only files unchanged since HEAD, or untracked, can already hold
+        // the target version; they are checked through the stat cache
+        List<String> candidates = new ArrayList<>();
+        for (Map.Entry<String, String> item : target.entrySet()) {
             String filename = item.getKey();
-            String blobId = item.getValue();
-            File file = join(CWD, filename);
-            Blob blob = readObject(join(BLOBS_DIR, blobId), Blob.class);
+            if (item.getValue().equals(headFiles.get(filename)) || !tracked.contains(filename)) {
+                candidates.add(filename);
+            }
+        }
+        Map<String, String> working = new WorkingTreeScanner(CWD, getStatCache())
+                .hashAll(candidates, parallelism());
 
-            writeContents(file, blob.getContent());
+        List<String> writes = new ArrayList<>();
+        for (Map.Entry<String, String> item : target.entrySet()) {
+            String filename = item.getKey();
+            String workingId = working.get(filename);
+            if (workingId != null && holdsContent(item.getValue(), workingId)) {
+                continue;
+            }
+            if (workingId != null && !tracked.contains(filename)) {
+                System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
+                System.exit(0);
+            }
+            writes.add(filename);
         }
-    }
 
-    private void clearWorkingSpace() {
-        File[] files = CWD.listFiles(gitletFliter);
-        for (File file : files) {
-            delFile(file);
+        int deleted = 0;
+        for (String filename : tracked) {
+            if (!target.containsKey(filename) && join(CWD, filename).isFile()) {
+                deleteWorkingFile(filename);
+                deleted += 1;
+            }
         }
+        Collections.sort(writes);
+        new WorkingTreeWriter(CWD, getStatCache(), this::writeBlob)
+                .writeAll(writes, target, parallelism());
+        trace("checkout: %d written, %d deleted, %d unchanged",
+              writes.size(), deleted, target.size() - writes.size());
     }
 
     private void delFile(File file) {
@@ -1038,52 +1625,30 @@ public class Repository {
         file.delete();
     }
 
-    private FilenameFilter gitletFliter = new FilenameFilter() {
-        @Override
-        public boolean accept(File dir, String name) {
-            return !name.equals(".gitlet");
-        }
-    };
-
-    private List<File> getWorkingSpaceFiles() {
-        File[] files = CWD.listFiles(gitletFliter);
-        if (files == null) {
-            return null;
-        } else {
-            Arrays.sort(files);
-            return Arrays.asList(files);
-        }
-    }
-
     /**
-     * moving all staging dir's blob file to blobs dir.
+     * moving all staging dir's blob file to blobs dir (left by older
+     * versions), and emptying the stage.
      *
      * @param stage
      */
     private void clearStage(Stage stage) {
         File[] files = STAGING_DIR.listFiles();
-        if (files == null) {
-            return;
-        }
-        Path targetDir = BLOBS_DIR.toPath();
-        for (File file : files) {
-            Path source = file.toPath();
-            try {
-                Files.move(source, targetDir.resolve(source.getFileName()), REPLACE_EXISTING);
-            } catch (IOException e) {
-                e.printStackTrace();
+        if (files != null) {
+            for (File file : files) {
+                blobStore.install(file, file.getName());
             }
         }
 
-        writeStage(new Stage());
+        stage.clear();
+        writeStage(stage);
     }
 
     private Stage readStage() {
-        return readObject(STAGE, Stage.class);
+        return Stage.read(STAGE, STAGE_JOURNAL);
     }
 
     private void writeStage(Stage stage) {
-        writeObject(STAGE, stage);
+        stage.write(STAGE, STAGE_JOURNAL);
     }
 
     private String getHeadBranchName() {
@@ -1095,11 +1660,20 @@ public class Repository {
     }
 
     private Commit getCommitFromId(String commitId) {
-        File file = join(COMMITS_DIR, commitId);
-        if (commitId.equals("null") || !file.exists()) {
+        if (commitId == null || commitId.equals("null")) {
+            return null;
+        }
+        Commit commit = commitCache.get(commitId);
+        if (commit != null) {
+            return commit;
+        }
+        byte[] content = commitStore.read(commitId);
+        if (content == null) {
             return null;
         }
-        return readObject(file, Commit.class);
+        commit = Commit.decode(commitId, content);
+        commitCache.put(commit);
+        return commit;
     }
 
     private Commit getCommitFromBranchFile(File file) {
@@ -1121,9 +1695,73 @@ public class Repository {
         return head;
     }
 
+    /** Stores COMMIT, whose stored form is CONTENT, and adds it to the
+     *  commit id index, the journal and the message index. */
+    private void storeCommit(Commit commit, byte[] content) {
+        // read or build the id index first, so a new index does not list the commit twice
+        IdIndex ids = getCommitIds();
+        commitStore.write(commit.getID(), content);
+        ids.add(commit.getID());
+        getCommitJournal().add(commit);
+        getMessageIndex().add(commit.getID(), commit.getMessage());
+    }
+
+    private CommitJournal getCommitJournal() {
+        if (commitJournal == null) {
+            commitJournal = CommitJournal.read(COMMIT_JOURNAL);
+        }
+        return commitJournal;
+    }
+
+    /**
+     * Returns the commit journal, rebuilt from the commit store if it does
+     * not cover as many commits as the commit graph, like
+     * getCheckedMessageIndex().
+     */
+    private CommitJournal getCheckedCommitJournal() {
+        graphPosition(getHead().getID());
+        if (getCommitJournal().size() != getCommitGraph().size()) {
+            List<Commit> commits = new ArrayList<>();
+            for (String commitId : commitStore.ids()) {
+                graphPosition(commitId);
+                commits.add(getCommitFromId(commitId));
+            }
+            commitJournal = CommitJournal.build(COMMIT_JOURNAL, commits);
+        }
+        return commitJournal;
+    }
+
+    private MessageIndex getMessageIndex() {
+        if (messageIndex == null) {
+            messageIndex = MessageIndex.read(MESSAGE_INDEX, MESSAGE_LOG);
+        }
+        return messageIndex;
+    }
+
+    /**
+     * Returns the message index, rebuilt from the commit store if it does
+     * not cover as many commits as the commit graph: it is missing, was
+     * written by an older version, or a crash cut its update short.  A
+     * commit whose command crashed before flush() is added to the graph
+     * by looking up HEAD first.
+     */
+    private MessageIndex getCheckedMessageIndex() {
+        graphPosition(getHead().getID());
+        if (getMessageIndex().size() != getCommitGraph().size()) {
+            Map<String, String> messages = new LinkedHashMap<>();
+            for (String commitId : commitStore.ids()) {
+                graphPosition(commitId);
+                messages.put(commitId, getCommitFromId(commitId).getMessage());
+            }
+            messageIndex = MessageIndex.build(MESSAGE_INDEX, MESSAGE_LOG, messages);
+        }
+        return messageIndex;
+    }
+
     private void writeCommitToFile(Commit commit) {
-        File file = join(COMMITS_DIR, commit.getID());
-        writeObject(file, commit);
+        storeCommit(commit, commit.encode());
+        commitCache.put(commit);
+        graphPosition(commit.getID());
     }
 
 
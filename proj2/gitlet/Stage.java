@@ -1,19 +1,78 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+
+import static gitlet.Utils.*;
 
 /**
  * Represents the staging area.
+ * <p>
+ * It is stored as a snapshot plus a journal of the changes made since:
+ * <p>
+ * stage, the snapshot, rewritten whole:
+ * -- see encode()
+ * <p>
+ * stage-journal, appended to by every add and rm:
+ * -- "GSTJ" [generation of the snapshot it applies to]
+ * -- records: [ADD] [filename] [20-byte blob id] | [REMOVE] [filename] | [UNSTAGE] [filename]
+ * <p>
+ * Once the journal holds more records than the stage has entries (and
+ * at least MIN_COMPACT), the next write() folds it into a new snapshot
+ * with the next generation and deletes it.  A journal whose generation
+ * does not match the snapshot is left over from a crash after such a
+ * rewrite and is ignored, as is a torn final record.
  */
 public class Stage implements Serializable {
+    /** Kept from the serialized form, so existing stages still load. */
+    private static final long serialVersionUID = 8589021788809035670L;
+
+    /** Version of the format written by encode(). */
+    private static final int FORMAT_VERSION = 2;
+    /** Version 1 had no generation. */
+    private static final int NO_GENERATION_VERSION = 1;
+
+    private static final int JOURNAL_MAGIC = 0x4753544a;   // "GSTJ"
+    private static final int JOURNAL_HEADER_SIZE = 12;
+
+    /** Journal record types. */
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte UNSTAGE = 3;
+
+    /** Smallest journal that is folded into the snapshot. */
+    static final int MIN_COMPACT = 256;
+
     // <filename, blob's id>
     private HashMap<String, String> added;
     // <filename>
     private HashSet<String> removed;
 
+    /** Generation of the snapshot this stage was read from. */
+    private transient long generation;
+    /** Valid length of the journal file and its number of records, as
+     *  read; 0 if there is no journal for this generation. */
+    private transient long journalLength;
+    private transient int journalCount;
+    /** Records for the changes made since the stage was read. */
+    private transient ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private transient int pendingCount;
+    /** True if the next write() has to rewrite the snapshot. */
+    private transient boolean rewrite = true;
+
     public Stage() {
         added = new HashMap<>();
         removed = new HashSet<>();
@@ -22,6 +81,7 @@ public class Stage implements Serializable {
     public void addFile(String filename, String blobId) {
         added.put(filename, blobId);
         removed.remove(filename);
+        record(ADD, filename, blobId);
     }
 
     public boolean isEmpty() {
@@ -31,12 +91,32 @@ public class Stage implements Serializable {
     public void removeFile(String filename) {
         added.remove(filename);
         removed.add(filename);
+        record(REMOVE, filename, null);
     }
 
+    /** Drops FILENAME from the stage, whether staged for addition or removal. */
+    public void unstage(String filename) {
+        added.remove(filename);
+        removed.remove(filename);
+        record(UNSTAGE, filename, null);
+    }
+
+    /** Empties the stage; the next write() rewrites the snapshot. */
+    public void clear() {
+        added.clear();
+        removed.clear();
+        pending.reset();
+        pendingCount = 0;
+        rewrite = true;
+    }
+
+    /** The files staged for addition; change them through addFile(),
+     *  removeFile() and unstage() only, so the journal sees the change. */
     public HashMap<String, String> getAdded() {
         return added;
     }
 
+    /** The files staged for removal; see getAdded(). */
     public HashSet<String> getRemoved() {
         return removed;
     }
@@ -47,4 +127,182 @@ public class Stage implements Serializable {
         res.addAll(removed);
         return res;
     }
+
+    /**
+     * Returns the snapshot of this stage:
+     * [version] [generation] [added count] ([filename] [blob id])... [removed count] [filename]...
+     * Strings are length-prefixed UTF-8 and ids are raw 20-byte hashes.
+     */
+    byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FORMAT_VERSION);
+            out.writeLong(generation);
+            out.writeInt(added.size());
+            for (Map.Entry<String, String> item : added.entrySet()) {
+                writeString(out, item.getKey());
+                writeId(out, item.getValue());
+            }
+            out.writeInt(removed.size());
+            for (String filename : removed) {
+                writeString(out, filename);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw error("Internal error encoding stage.");
+        }
+    }
+
+    /** Returns the stage stored as BYTES, written by encode() or, by older
+     *  versions, with Java serialization. */
+    static Stage decode(byte[] bytes) {
+        if (isSerialized(bytes)) {
+            Stage old = deserialize(bytes, Stage.class);
+            Stage stage = new Stage();
+            stage.added.putAll(old.added);
+            stage.removed.addAll(old.removed);
+            return stage;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            int version = in.readByte();
+            if (version != FORMAT_VERSION && version != NO_GENERATION_VERSION) {
+                throw error("Unknown stage format %d.", version);
+            }
+            Stage stage = new Stage();
+            if (version == FORMAT_VERSION) {
+                stage.generation = in.readLong();
+            }
+            int addedCount = in.readInt();
+            for (int i = 0; i < addedCount; i++) {
+                String filename = readString(in);
+                stage.added.put(filename, readId(in));
+            }
+            int removedCount = in.readInt();
+            for (int i = 0; i < removedCount; i++) {
+                stage.removed.add(readString(in));
+            }
+            return stage;
+        } catch (IOException excp) {
+            throw error("Corrupt stage.");
+        }
+    }
+
+    /** Reads the stage from snapshot SNAPSHOTFILE and the journal
+     *  JOURNALFILE on top of it. */
+    static Stage read(File snapshotFile, File journalFile) {
+        Stage stage = decode(readContents(snapshotFile));
+        stage.rewrite = false;
+        if (journalFile.isFile()) {
+            stage.replay(readContents(journalFile));
+        }
+        return stage;
+    }
+
+    /**
+     * Stores the changes made since the stage was read: appends them to
+     * JOURNALFILE, or rewrites SNAPSHOTFILE if the stage is new or cleared,
+     * the journal grew long, or the journal file is not the one read.
+     */
+    void write(File snapshotFile, File journalFile) {
+        if (!rewrite && pendingCount == 0) {
+            return;
+        }
+        int records = journalCount + pendingCount;
+        if (rewrite || records > Math.max(MIN_COMPACT, added.size() + removed.size())
+                || (journalLength > 0 && journalFile.length() != journalLength)) {
+            writeSnapshot(snapshotFile);
+            journalFile.delete();
+            journalLength = 0;
+            journalCount = 0;
+        } else {
+            appendJournal(journalFile);
+        }
+        pending.reset();
+        pendingCount = 0;
+        rewrite = false;
+    }
+
+    private void record(byte type, String filename, String blobId) {
+        try {
+            DataOutputStream out = new DataOutputStream(pending);
+            out.writeByte(type);
+            writeString(out, filename);
+            if (type == ADD) {
+                writeId(out, blobId);
+            }
+            pendingCount += 1;
+        } catch (IOException excp) {
+            throw error("Internal error encoding stage.");
+        }
+    }
+
+    /** Applies the complete records of JOURNAL, if it belongs to this
+     *  stage's snapshot. */
+    private void replay(byte[] journal) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal));
+        try {
+            if (journal.length < JOURNAL_HEADER_SIZE || in.readInt() != JOURNAL_MAGIC
+                    || in.readLong() != generation) {
+                return;
+            }
+            journalLength = JOURNAL_HEADER_SIZE;
+            while (in.available() > 0) {
+                byte type = in.readByte();
+                String filename = readString(in);
+                if (type == ADD) {
+                    String blobId = readId(in);
+                    added.put(filename, blobId);
+                    removed.remove(filename);
+                } else if (type == REMOVE) {
+                    added.remove(filename);
+                    removed.add(filename);
+                } else if (type == UNSTAGE) {
+                    added.remove(filename);
+                    removed.remove(filename);
+                } else {
+                    break;
+                }
+                journalLength = journal.length - in.available();
+                journalCount += 1;
+            }
+        } catch (EOFException excp) {
+            // torn final record: ignored, and overwritten by the next append
+        } catch (IOException excp) {
+            throw error("Corrupt stage journal.");
+        }
+    }
+
+    private void appendJournal(File journalFile) {
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+            if (journalLength == 0) {
+                raf.setLength(0);
+                raf.writeInt(JOURNAL_MAGIC);
+                raf.writeLong(generation);
+                journalLength = JOURNAL_HEADER_SIZE;
+            }
+            raf.setLength(journalLength);
+            raf.seek(journalLength);
+            raf.write(pending.toByteArray());
+            journalLength += pending.size();
+            journalCount += pendingCount;
+        } catch (IOException excp) {
+            throw error("cannot write stage journal: %s", excp.getMessage());
+        }
+    }
+
+    /** Writes the whole stage as the snapshot of the next generation,
+     *  through a temporary file. */
+    private void writeSnapshot(File snapshotFile) {
+        generation += 1;
+        try {
+            File tmp = File.createTempFile("stage", ".tmp", snapshotFile.getParentFile());
+            writeContents(tmp, encode());
+            Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw error("cannot write stage: %s", excp.getMessage());
+        }
+    }
 }
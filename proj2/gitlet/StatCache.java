@@ -0,0 +1,166 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+
+/**
+ * Remembers the size, mtime and file key of working files together with
+ * their blob ids, so a file is only rehashed when its stat data changed.
+ * <p>
+ * index
+ * -- [version] [count]
+ * -- [path] [size] [mtime in ns] [file key] [20-byte blob id] ...
+ * <p>
+ * An entry whose mtime is not older than the index file itself is
+ * "racily clean": the file may have changed again within the same clock
+ * tick after it was hashed, so it is rehashed instead of trusted.
+ */
+class StatCache {
+    private static final int VERSION = 1;
+
+    /**
+     * Stat data of one file, plus its blob id once known.
+     */
+    static class Entry {
+        final long size;
+        final long mtime;
+        final String key;
+        final String id;
+
+        Entry(long size, long mtime, String key, String id) {
+            this.size = size;
+            this.mtime = mtime;
+            this.key = key;
+            this.id = id;
+        }
+
+        boolean sameStat(Entry other) {
+            return size == other.size && mtime == other.mtime && key.equals(other.key);
+        }
+    }
+
+    private final File file;
+    /** Mtime of the index file when it was read, in ns. */
+    private final long indexTime;
+    private final Map<String, Entry> entries;
+    private volatile boolean dirty;
+
+    private StatCache(File file, long indexTime, Map<String, Entry> entries) {
+        this.file = file;
+        this.indexTime = indexTime;
+        this.entries = entries;
+    }
+
+    /** Reads the index in FILE, or starts an empty one if FILE is
+     *  missing or unreadable. */
+    static StatCache read(File file) {
+        Map<String, Entry> entries = new ConcurrentHashMap<>();
+        long indexTime = Long.MIN_VALUE;
+        if (file.isFile()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+                indexTime = Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+                if (in.readInt() == VERSION) {
+                    int count = in.readInt();
+                    byte[] raw = new byte[20];
+                    for (int i = 0; i < count; i++) {
+                        String path = in.readUTF();
+                        long size = in.readLong();
+                        long mtime = in.readLong();
+                        String key = in.readUTF();
+                        in.readFully(raw);
+                        entries.put(path, new Entry(size, mtime, key, bytesToHex(raw)));
+                    }
+                }
+            } catch (IOException excp) {
+                entries.clear();
+            }
+        }
+        return new StatCache(file, indexTime, entries);
+    }
+
+    /** Returns the current stat data of FILE, or null if it is not an
+     *  existing regular file. */
+    static Entry stat(File file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            Object key = attrs.fileKey();
+            return new Entry(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                    key == null ? "" : key.toString(), null);
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /** Returns the blob id cached for PATH if its stat data is still
+     *  CURRENT and the entry is not racily clean, otherwise null. */
+    String lookup(String path, Entry current) {
+        Entry entry = entries.get(path);
+        if (entry == null || current == null || !entry.sameStat(current)
+                || entry.mtime >= indexTime) {
+            return null;
+        }
+        return entry.id;
+    }
+
+    /** Records that PATH, whose stat data was CURRENT before hashing,
+     *  has blob id ID. */
+    void put(String path, Entry current, String id) {
+        if (current == null) {
+            remove(path);
+            return;
+        }
+        entries.put(path, new Entry(current.size, current.mtime, current.key, id));
+        dirty = true;
+    }
+
+    void remove(String path) {
+        if (entries.remove(path) != null) {
+            dirty = true;
+        }
+    }
+
+    /** Writes the index back if it changed, through a temporary file. */
+    void write() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            File tmp = File.createTempFile("index", ".tmp", file.getParentFile());
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+                Map<String, Entry> snapshot = new HashMap<>(entries);
+                out.writeInt(VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry> item : snapshot.entrySet()) {
+                    Entry entry = item.getValue();
+                    out.writeUTF(item.getKey());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.mtime);
+                    out.writeUTF(entry.key);
+                    out.write(hexToBytes(entry.id));
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            dirty = false;
+        } catch (IOException excp) {
+            throw error("cannot write index: %s", excp.getMessage());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * Represents one directory of a commit: its files and subdirectories,
+ * sorted by name, each referenced by id.
+ * <p>
+ * A tree is stored as
+ * [version] [entry count] ([type] [name] [20-byte blob or tree id])...
+ * and its id is the SHA-1 of that, so commits whose directories did not
+ * change share the same tree objects.
+ */
+class Tree {
+    /** Version of the format written by encode(). */
+    private static final int FORMAT_VERSION = 1;
+
+    static final byte FILE = 1;
+    static final byte DIRECTORY = 2;
+
+    /** Id of the tree without entries. */
+    static final String EMPTY_ID = new Tree().getId();
+
+    /**
+     * A file (blob id) or subdirectory (tree id) of a tree.
+     */
+    static class Entry {
+        final byte type;
+        final String id;
+
+        Entry(byte type, String id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        boolean isDirectory() {
+            return type == DIRECTORY;
+        }
+    }
+
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    /** Returns the entries of this tree, sorted by name. */
+    SortedMap<String, Entry> getEntries() {
+        return entries;
+    }
+
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    void putFile(String name, String blobId) {
+        entries.put(name, new Entry(FILE, blobId));
+    }
+
+    void putDirectory(String name, String treeId) {
+        entries.put(name, new Entry(DIRECTORY, treeId));
+    }
+
+    void remove(String name) {
+        entries.remove(name);
+    }
+
+    String getId() {
+        return sha1(encode());
+    }
+
+    /** Returns the stored form of this tree. */
+    byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + entries.size() * 40);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                out.writeByte(item.getValue().type);
+                writeString(out, item.getKey());
+                writeId(out, item.getValue().id);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw error("Internal error encoding tree.");
+        }
+    }
+
+    /** Returns the tree stored as BYTES. */
+    static Tree decode(byte[] bytes) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            int version = in.readByte();
+            if (version != FORMAT_VERSION) {
+                throw error("Unknown tree format %d.", version);
+            }
+            Tree tree = new Tree();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte type = in.readByte();
+                String name = readString(in);
+                tree.entries.put(name, new Entry(type, readId(in)));
+            }
+            return tree;
+        } catch (IOException excp) {
+            throw error("Corrupt tree.");
+        }
+    }
+}
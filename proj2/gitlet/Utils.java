@@ -1,7 +1,10 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
@@ -17,6 +20,9 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Formatter;
 import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 
 /** Assorted utilities.
@@ -63,6 +69,32 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Returns the raw 20 bytes of the hexadecimal SHA-1 UID ID. */
+    static byte[] hexToBytes(String id) {
+        byte[] res = new byte[id.length() / 2];
+        for (int i = 0; i < res.length; i++) {
+            int hi = Character.digit(id.charAt(2 * i), 16);
+            int lo = Character.digit(id.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new NumberFormatException("not a hexadecimal id: " + id);
+            }
+            res[i] = (byte) ((hi << 4) | lo);
+        }
+        return res;
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Returns the lower-case hexadecimal numeral of the bytes in RAW. */
+    static String bytesToHex(byte[] raw) {
+        char[] res = new char[raw.length * 2];
+        for (int i = 0; i < raw.length; i++) {
+            res[2 * i] = HEX_DIGITS[(raw[i] >> 4) & 0xf];
+            res[2 * i + 1] = HEX_DIGITS[raw[i] & 0xf];
+        }
+        return new String(res);
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -224,8 +256,128 @@ class Utils {
 
 
 
+    /** Return an object of type T deserialized from BYTES, casting it to
+     *  EXPECTEDCLASS.  Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+
+
+    /* BINARY ENCODING */
+
+    /** True if BYTES starts like a Java-serialized object, as written by
+     *  older versions of gitlet. */
+    static boolean isSerialized(byte[] bytes) {
+        return bytes.length >= 2 && (bytes[0] & 0xff) == 0xac && (bytes[1] & 0xff) == 0xed;
+    }
+
+    /** Writes STR to OUT as its UTF-8 length followed by its UTF-8 bytes. */
+    static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Reads a string written by writeString from IN. */
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Writes the SHA-1 UID ID to OUT as its raw 20 bytes. */
+    static void writeId(DataOutputStream out, String id) throws IOException {
+        out.write(hexToBytes(id));
+    }
+
+    /** Reads a SHA-1 UID written by writeId from IN. */
+    static String readId(DataInputStream in) throws IOException {
+        byte[] raw = new byte[UID_LENGTH / 2];
+        in.readFully(raw);
+        return bytesToHex(raw);
+    }
+
+
+
+    /* COMPRESSION */
+
+    /** Returns BYTES compressed with Deflater. */
+    static byte[] compress(byte[] bytes) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(bytes);
+        deflater.finish();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(bytes.length / 2 + 16);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            stream.write(buffer, 0, n);
+        }
+        deflater.end();
+        return stream.toByteArray();
+    }
+
+    /** Returns the bytes of BYTES from OFFSET on, decompressed with
+     *  Inflater.  Throws IllegalArgumentException in case of problems. */
+    static byte[] decompress(byte[] bytes, int offset) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(bytes, offset, bytes.length - offset);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(bytes.length * 2);
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("truncated compressed data");
+                }
+                stream.write(buffer, 0, n);
+            }
+        } catch (DataFormatException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return stream.toByteArray();
+    }
+
+
+
+    /* PARALLELISM */
+
+    /** Returns the number of threads to use for parallel work: the value
+     *  of -Dgitlet.threads, or else the number of available cores. */
+    static int parallelism() {
+        int threads = Integer.getInteger("gitlet.threads",
+                                         Runtime.getRuntime().availableProcessors());
+        return Math.max(1, threads);
+    }
+
+
+
     /* MESSAGES AND ERROR REPORTING */
 
+    /** True if -Dgitlet.trace=true: print internal statistics to stderr. */
+    private static final boolean TRACE = Boolean.getBoolean("gitlet.trace");
+
+    /** Print a message composed from MSG and ARGS as for the String.format
+     *  method, followed by a newline, to stderr if tracing is on. */
+    static void trace(String msg, Object... args) {
+        if (TRACE) {
+            System.err.printf("trace: " + msg, args);
+            System.err.println();
+        }
+    }
+
     /** Return a GitletException whose message is composed from MSG and ARGS as
      *  for the String.format method. */
     static GitletException error(String msg, Object... args) {
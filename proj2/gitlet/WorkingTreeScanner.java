@@ -0,0 +1,141 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+
+import static gitlet.Utils.*;
+
+/**
+ * Lists working files, and hashes or stores them in parallel on a
+ * fork-join pool.  Files whose stat data still matches the StatCache are
+ * not read at all; the rest are split into halves until a task holds at
+ * most LEAF_SIZE files, and each leaf handles its files on whichever core
+ * picks it up.
+ */
+class WorkingTreeScanner {
+    /** Number of files one task hashes without splitting further. */
+    private static final int LEAF_SIZE = 16;
+
+    private final File cwd;
+    private final StatCache cache;
+
+    WorkingTreeScanner(File cwd, StatCache cache) {
+        this.cwd = cwd;
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the paths of all files in the working directory and its
+     * subdirectories, relative to it with '/' between directories, sorted.
+     * The .gitlet directory and nested repositories are left out.
+     */
+    List<String> listFiles() {
+        return listFiles("");
+    }
+
+    /** Returns the paths of the files in working directory DIR, given
+     *  relative to the working directory, and its subdirectories, as
+     *  listFiles() does; "" is the working directory itself. */
+    List<String> listFiles(String dir) {
+        List<String> res = new ArrayList<>();
+        listFiles(join(cwd, dir), dir.isEmpty() ? "" : dir + "/", res);
+        Collections.sort(res);
+        return res;
+    }
+
+    private void listFiles(File dir, String prefix, List<String> res) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isFile()) {
+                res.add(prefix + name);
+            } else if (file.isDirectory() && !name.equals(".gitlet")
+                    && !join(file, ".gitlet").isDirectory()) {
+                listFiles(file, prefix + name + "/", res);
+            }
+        }
+    }
+
+    /** Returns the blob ids of the working files PATHS, keyed by path,
+     *  hashed with up to THREADS threads.  Missing files are left out. */
+    Map<String, String> hashAll(List<String> paths, int threads) {
+        return applyAll(paths, threads, this::hash);
+    }
+
+    /** Returns the results of ACTION for each of PATHS, keyed by path,
+     *  computed with up to THREADS threads; null results are left out.
+     *  ACTION has to be safe to call from several threads at once. */
+    Map<String, String> applyAll(List<String> paths, int threads, Function<String, String> action) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new PathTask(paths, 0, paths.size(), action));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Applies an action to a range of paths, splitting it in halves
+     *  until they are at most LEAF_SIZE long.  Never serialized. */
+    private static class PathTask extends RecursiveTask<Map<String, String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> paths;
+        private final int from;
+        private final int to;
+        private final Function<String, String> action;
+
+        PathTask(List<String> paths, int from, int to, Function<String, String> action) {
+            this.paths = paths;
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+
+        @Override
+        protected Map<String, String> compute() {
+            if (to - from <= LEAF_SIZE) {
+                Map<String, String> res = new HashMap<>();
+                for (int i = from; i < to; i++) {
+                    String path = paths.get(i);
+                    String id = action.apply(path);
+                    if (id != null) {
+                        res.put(path, id);
+                    }
+                }
+                return res;
+            }
+            int mid = (from + to) >>> 1;
+            PathTask left = new PathTask(paths, from, mid, action);
+            left.fork();
+            Map<String, String> res = new PathTask(paths, mid, to, action).compute();
+            res.putAll(left.join());
+            return res;
+        }
+    }
+
+    /** Returns the blob id of working file PATH, or null if it does not
+     *  exist. */
+    private String hash(String path) {
+        File file = join(cwd, path);
+        StatCache.Entry stat = StatCache.stat(file);
+        if (stat == null) {
+            return null;
+        }
+        String id = cache.lookup(path, stat);
+        if (id == null) {
+            id = Blob.hash(file);
+            cache.put(path, stat, id);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,84 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+import static gitlet.Utils.*;
+
+/**
+ * Writes blobs out as working files on a fixed pool of threads, so that
+ * decoding or copying one file and waiting on the file system for another
+ * overlap.
+ * Parent directories are created up front, in order; each file is then
+ * one task, and at most THREADS of them run at once.  Failures are
+ * reported for the first failing file in the order given, whichever
+ * thread hit its error first.
+ */
+class WorkingTreeWriter {
+    private final File cwd;
+    private final StatCache cache;
+    private final BiConsumer<String, File> blobs;
+
+    /** Writes files into CWD, recording them in CACHE, with BLOBS writing
+     *  the content of a blob id into a file; BLOBS has to be safe to call
+     *  from several threads at once. */
+    WorkingTreeWriter(File cwd, StatCache cache, BiConsumer<String, File> blobs) {
+        this.cwd = cwd;
+        this.cache = cache;
+        this.blobs = blobs;
+    }
+
+    /** Writes each of PATHS with the blob it has in BLOBIDS, using up to
+     *  THREADS threads. */
+    void writeAll(List<String> paths, Map<String, String> blobIds, int threads) {
+        Set<File> dirs = new LinkedHashSet<>();
+        for (String path : paths) {
+            dirs.add(join(cwd, path).getParentFile());
+        }
+        for (File dir : dirs) {
+            dir.mkdirs();
+        }
+
+        if (threads <= 1 || paths.size() <= 1) {
+            for (String path : paths) {
+                write(path, blobIds.get(path));
+            }
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, paths.size()));
+        try {
+            List<Future<?>> results = new ArrayList<>(paths.size());
+            for (String path : paths) {
+                String blobId = blobIds.get(path);
+                results.add(pool.submit(() -> write(path, blobId)));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException excp) {
+                    throw error("cannot write %s: %s", paths.get(i), excp.getCause().getMessage());
+                } catch (InterruptedException excp) {
+                    Thread.currentThread().interrupt();
+                    throw error("interrupted writing %s", paths.get(i));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void write(String path, String blobId) {
+        File file = join(cwd, path);
+        blobs.accept(blobId, file);
+        cache.put(path, StatCache.stat(file), blobId);
+    }
+}